@@ -0,0 +1,98 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the type classification and validation done for every merged key and described list.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassificationBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    private int arrayLength;
+
+    @Param({"1000"})
+    private int listSampling;
+
+    private Validator validator;
+    private List<Object> numbers;
+    private List<Object> documents;
+    private SchemaNode[] nodes;
+    private int next;
+
+    @Setup
+    public void setup(){
+        Map<Validator.Setting,Boolean> settings = new HashMap<>();
+        settings.put(Validator.Setting.FAIL_FAST,false);
+        validator = new Validator().withSettings(settings);
+
+        numbers = new ArrayList<>(arrayLength);
+        documents = new ArrayList<>(arrayLength);
+        for(int i=0; i<arrayLength; i++){
+            numbers.add(i);
+            documents.add(new Document("id",i));
+        }
+
+        List<Object> strings = new ArrayList<>();
+        strings.add("s");
+        List<Object> list = new ArrayList<>();
+        list.add(new Document("id",1));
+        Generator generator = new Generator().withValidator(validator);
+        Document doc = new Document("a","s").append("b",1).append("c",new Document("d",1))
+                .append("e",new ArrayList<>()).append("f",strings).append("g",list);
+        nodes = generator.describeDocument(doc).getFields().values().toArray(new SchemaNode[0]);
+    }
+
+    @Benchmark
+    public Type getMergedType() throws Validator.ValidationException {
+        SchemaNode node = nodes[this.next(nodes.length)];
+        return validator.getMergedType("key",node,node);
+    }
+
+    @Benchmark
+    public boolean isCongruent(){
+        return validator.isCongruent(ListSummary.of(numbers,ListSummary.ALL));
+    }
+
+    @Benchmark
+    public boolean isCongruentDocuments(){
+        return validator.isCongruent(ListSummary.of(documents,ListSummary.ALL));
+    }
+
+    @Benchmark
+    public boolean isCongruentSampled(){
+        return validator.isCongruent(ListSummary.of(numbers,listSampling));
+    }
+
+    @Benchmark
+    public Type getListType(){
+        return Type.getListType(ListSummary.of(documents,listSampling));
+    }
+
+    private int next(int bound){
+        next = (next+1)%bound;
+        return next;
+    }
+}
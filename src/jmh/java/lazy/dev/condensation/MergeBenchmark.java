@@ -0,0 +1,101 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the {@link Generator}'s merge engine.
+ * Merging changes the first node, so every merge describes a fresh first node and merges a prebuilt node of the next
+ * shape into it, or for lists a prebuilt list of every shape.
+ * {@link #describeDocument()} measures describing alone, subtract it to get the cost of the merge.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+    @Param({"4", "16"})
+    private int width;
+
+    @Param({"1", "2"})
+    private int depth;
+
+    @Param({"10", "1000"})
+    private int arrayLength;
+
+    @Param({"1", "16"})
+    private int shapes;
+
+    private Generator generator;
+    private Document[] documents;
+    private SchemaNode[] nodes;
+    private Document[] lists;
+    private SchemaNode listNode;
+    private int next;
+
+    @Setup
+    public void setup(){
+        Map<Validator.Setting,Boolean> validatorSettings = new HashMap<>();
+        validatorSettings.put(Validator.Setting.FAIL_FAST,false);
+        Map<Generator.Setting,Boolean> settings = new HashMap<>();
+        settings.put(Generator.Setting.TRUNCATE_LISTS,false);
+        generator = new Generator().withSettings(settings).withValidator(new Validator().withSettings(validatorSettings));
+
+        documents = new SyntheticWorkload().withWidth(width).withDepth(depth).withArrayLength(arrayLength).withShapes(shapes).shapes();
+        nodes = new SchemaNode[shapes];
+        lists = new Document[shapes];
+        listNode = generator.describeDocument(new Document("items",new ArrayList<>(Arrays.asList(documents)))).get("items");
+        for(int shape=0; shape<shapes; shape++){
+            nodes[shape] = generator.describeDocument(documents[shape]);
+            lists[shape] = new Document("items",new ArrayList<>(Collections.singletonList(documents[shape])));
+        }
+    }
+
+    @Benchmark
+    public SchemaNode describeDocument(){
+        return generator.describeDocument(documents[this.nextShape()]);
+    }
+
+    @Benchmark
+    public SchemaNode mergeDocuments(){
+        int shape = this.nextShape();
+        return generator.mergeDocuments(generator.describeDocument(documents[shape]),nodes[(shape+1)%shapes]);
+    }
+
+    @Benchmark
+    public SchemaNode mergeKey(){
+        int shape = this.nextShape();
+        return generator.mergeKey("root",generator.describeDocument(documents[shape]),nodes[(shape+1)%shapes]);
+    }
+
+    @Benchmark
+    public SchemaNode mergeDocumentLists(){
+        int shape = this.nextShape();
+        return generator.mergeDocumentLists(generator.describeDocument(lists[shape]).get("items"),listNode);
+    }
+
+    private int nextShape(){
+        next = (next+1)%shapes;
+        return next;
+    }
+}
@@ -0,0 +1,123 @@
+package lazy.dev.condensation;
+
+import org.bson.RawBsonDocument;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads the documents of a mongodump .bson file, which is nothing more than BSON documents one after the other.
+ * Every document starts with its length as a little endian int32, so a file can be split into chunks that start and end
+ * on document boundaries by hopping from length to length, without parsing the documents. Chunks are memory mapped and
+ * can then be read in parallel.
+ *
+ * Documents are handed out as {@link RawBsonDocument}s over a buffer that is reused for the next document, they must
+ * not be kept after the consumer returns.
+ */
+final class BsonDump {
+
+    /** The largest document MongoDB stores, a document starting in a chunk always ends in its mapped window. */
+    private static final int MAX_DOCUMENT_SIZE = 16*1024*1024;
+
+    private BsonDump(){}
+
+    /**
+     * Split a file into memory mapped chunks of about the given size, each holding whole documents.
+     * @param channel - the channel of the file.
+     * @param chunkSize - the size after which a chunk ends with the document being read.
+     * @return the chunks, in file order.
+     * @throws IOException - when the file cannot be mapped or is not a sequence of BSON documents.
+     */
+    static List<ByteBuffer> split(FileChannel channel, long chunkSize) throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        long size = channel.size();
+        long start = 0;
+        while(start<size){
+            long window = Math.min(size-start,chunkSize+MAX_DOCUMENT_SIZE);
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,start,window).order(ByteOrder.LITTLE_ENDIAN);
+            int end = 0;
+            while(end<chunkSize && end<window){
+                if(window-end<4){
+                    throw new IOException("Truncated document at offset "+(start+end));
+                }
+                int length = mapped.getInt(end);
+                if(length<5 || length>window-end){
+                    throw new IOException("Invalid document length "+length+" at offset "+(start+end));
+                }
+                end += length;
+            }
+            mapped.limit(end);
+            chunks.add(mapped.slice().order(ByteOrder.LITTLE_ENDIAN));
+            start += end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Read every document of a chunk.
+     * @param chunk - the chunk, from {@link #split(FileChannel, long)}.
+     * @param consumer - called with each document.
+     */
+    static void read(ByteBuffer chunk, Consumer<RawBsonDocument> consumer){
+        ByteBuffer buffer = chunk.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        byte[] bytes = new byte[1024];
+        while(buffer.hasRemaining()){
+            int length = buffer.getInt(buffer.position());
+            if(length>bytes.length){
+                bytes = new byte[Math.max(length,bytes.length*2)];
+            }
+            buffer.get(bytes,0,length);
+            consumer.accept(new RawBsonDocument(bytes,0,length));
+        }
+    }
+
+    /**
+     * Read every document of a stream, for dumps that cannot be mapped such as gzipped ones.
+     * @param in - the stream, positioned at the start of a document.
+     * @param consumer - called with each document.
+     * @throws IOException - when the stream cannot be read or ends inside a document.
+     */
+    static void read(InputStream in, Consumer<RawBsonDocument> consumer) throws IOException {
+        byte[] bytes = new byte[1024];
+        while(true){
+            int read = readFully(in,bytes,0,4);
+            if(read==0){
+                return;// End of the dump
+            } else if(read<4){
+                throw new EOFException("Truncated document length");
+            }
+            int length = ByteBuffer.wrap(bytes,0,4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            if(length<5 || length>MAX_DOCUMENT_SIZE){
+                throw new IOException("Invalid document length "+length);
+            }
+            if(length>bytes.length){
+                byte[] larger = new byte[Math.max(length,bytes.length*2)];
+                System.arraycopy(bytes,0,larger,0,4);
+                bytes = larger;
+            }
+            if(readFully(in,bytes,4,length-4)<length-4){
+                throw new EOFException("Truncated document of length "+length);
+            }
+            consumer.accept(new RawBsonDocument(bytes,0,length));
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+        int total = 0;
+        while(total<length){
+            int read = in.read(bytes,offset+total,length-total);
+            if(read<0){
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,132 @@
+package lazy.dev.condensation;
+
+import org.bson.BsonBinarySubType;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.codecs.BsonTypeClassMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Maps BSON types to the classes the driver's DocumentCodec decodes them to.
+ * Lets schemas built from undecoded BSON use the same classes, and so the same validation, as decoded documents.
+ */
+final class BsonTypes {
+
+    private static final BsonTypeClassMap CLASS_MAP = new BsonTypeClassMap();
+
+    /** The names the $type aggregation operator gives each BSON type. */
+    private static final Map<String,BsonType> ALIASES = new HashMap<>();
+    static {
+        ALIASES.put("double",BsonType.DOUBLE);
+        ALIASES.put("string",BsonType.STRING);
+        ALIASES.put("object",BsonType.DOCUMENT);
+        ALIASES.put("array",BsonType.ARRAY);
+        ALIASES.put("binData",BsonType.BINARY);
+        ALIASES.put("undefined",BsonType.UNDEFINED);
+        ALIASES.put("objectId",BsonType.OBJECT_ID);
+        ALIASES.put("bool",BsonType.BOOLEAN);
+        ALIASES.put("date",BsonType.DATE_TIME);
+        ALIASES.put("null",BsonType.NULL);
+        ALIASES.put("regex",BsonType.REGULAR_EXPRESSION);
+        ALIASES.put("dbPointer",BsonType.DB_POINTER);
+        ALIASES.put("javascript",BsonType.JAVASCRIPT);
+        ALIASES.put("symbol",BsonType.SYMBOL);
+        ALIASES.put("javascriptWithScope",BsonType.JAVASCRIPT_WITH_SCOPE);
+        ALIASES.put("int",BsonType.INT32);
+        ALIASES.put("timestamp",BsonType.TIMESTAMP);
+        ALIASES.put("long",BsonType.INT64);
+        ALIASES.put("decimal",BsonType.DECIMAL128);
+        ALIASES.put("minKey",BsonType.MIN_KEY);
+        ALIASES.put("maxKey",BsonType.MAX_KEY);
+    }
+
+    /** The BSON type each class is encoded as, the reverse of {@link #getValueClass(BsonType)}. */
+    private static final ClassValue<BsonType> BSON_TYPES = new ClassValue<BsonType>() {
+        @Override
+        protected BsonType computeValue(Class<?> clazz){
+            if(Document.class.isAssignableFrom(clazz)){
+                return BsonType.DOCUMENT;
+            } else if(List.class.isAssignableFrom(clazz)){
+                return BsonType.ARRAY;
+            } else if(clazz==UUID.class){
+                return BsonType.BINARY;
+            }
+            for(BsonType bsonType : BsonType.values()){
+                if(bsonType!=BsonType.NULL && CLASS_MAP.get(bsonType)==clazz){
+                    return bsonType;
+                }
+            }
+            return null;
+        }
+    };
+
+    private BsonTypes(){}
+
+    /**
+     * Get the name the $type aggregation operator gives a BSON type.
+     * @param bsonType - the BSON type.
+     * @return the type name, for example "string" or "objectId".
+     */
+    static String getAlias(BsonType bsonType){
+        for(Map.Entry<String,BsonType> alias : ALIASES.entrySet()){
+            if(alias.getValue()==bsonType){
+                return alias.getKey();
+            }
+        }
+        return bsonType.name();
+    }
+
+    /**
+     * Get the BSON type a value of the given class is encoded as.
+     * @param clazz - the class of a decoded value.
+     * @return the BSON type, null if the class has none.
+     */
+    static BsonType getBsonType(Class<?> clazz){
+        return BSON_TYPES.get(clazz);
+    }
+
+    /**
+     * Get the BSON type for a name returned by the $type aggregation operator.
+     * @param alias - the type name, for example "string" or "objectId".
+     * @return the BSON type.
+     */
+    static BsonType fromAlias(String alias){
+        BsonType bsonType = ALIASES.get(alias);
+        if(bsonType==null){
+            throw new IllegalArgumentException("Unknown BSON type alias: "+alias);
+        }
+        return bsonType;
+    }
+
+    /**
+     * Get the class a value of the given BSON type is decoded to.
+     * @param bsonType - the BSON type.
+     * @return the class, null for {@link BsonType#NULL}.
+     */
+    static Class<?> getValueClass(BsonType bsonType){
+        if(bsonType==BsonType.ARRAY){
+            return ArrayList.class;
+        }
+        return CLASS_MAP.get(bsonType);
+    }
+
+    /**
+     * Get the class the reader's current value is decoded to, without reading the value.
+     * Binary UUIDs are decoded to {@link UUID} like the DocumentCodec does.
+     * @param reader - the reader positioned on a value.
+     * @return the class, null for {@link BsonType#NULL}.
+     */
+    static Class<?> getValueClass(BsonReader reader){
+        BsonType bsonType = reader.getCurrentBsonType();
+        if(bsonType==BsonType.BINARY && BsonBinarySubType.isUuid(reader.peekBinarySubType()) && reader.peekBinarySize()==16){
+            return UUID.class;
+        }
+        return getValueClass(bsonType);
+    }
+}
@@ -2,14 +2,23 @@ package lazy.dev.condensation;
 
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import org.bson.json.JsonWriterSettings;
+import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.function.Consumer;
+
 /**
  *
  class org.bson.Document
@@ -32,27 +41,112 @@ public class Condensation implements CommandLineRunner {
     @Autowired
     Generator generator;
 
+    @Value("${condensation.collection:someCollection}")
+    String collection;
+
+    @Value("${condensation.workers:4}")
+    int workers;
+
+    @Value("${condensation.dump:}")
+    String dump;
+
+    @Value("${condensation.output:}")
+    String output;
+
+    @Value("${condensation.format:CONDENSED}")
+    SchemaWriter.Format format;
+
+    @Value("${condensation.baseline:}")
+    String baseline;
+    private SchemaIndex baselineIndex;
+
+    @Value("${spring.main.web-environment:false}")
+    boolean serve;
+
     @Override
     public void run(String... args) throws Exception {
+        if(serve){
+            logger.info("Serving schemas at /schemas/{collection}");
+            return;
+        }
+        if(dump!=null && !dump.isEmpty()){
+            SchemaNode schema = generator.copy().forDump(Paths.get(dump)).generateSchemaNode();
+            this.output(out -> new SchemaWriter(format).withIndent(true).write(schema,out));
+            this.diff(schema);
+            return;
+        }
         if(mongoDatabase==null){
             logger.error("There was an issue connecting to the MongoDatabase!");
         } else {
             logger.info("DB looks good");
 
+            SchemaWriter writer = new SchemaWriter(format).withIndent(true);
+
+            // Condense every collection in the database when no collection is set
+            if(collection==null || collection.isEmpty()){
+                Map<String,SchemaNode> schemas = generator.generateSchemaNodes(mongoDatabase,workers);
+                this.output(out -> writer.write(schemas,out));
+                return;
+            }
+
             // TODO add null handling for collection (ex bad name)
-            MongoCollection mongoCollection = mongoDatabase.getCollection("someCollection");
+            MongoCollection<Document> mongoCollection = mongoDatabase.getCollection(collection);
 
 //          If you want to generate a schema with only a subset of documents, you can specify a query here.
 //          Bson filter = Filters.eq("someField","someValue");
 
-            String jsonSchema = generator
+            SchemaNode schema = generator
                     .forCollection(mongoCollection)
 //                    .withQuery(filter)                            // And uncomment here to apply the query.
-                    .generateSchema()
-                    .toJson(new JsonWriterSettings(true));
+                    .generateSchemaNode();
+
+            this.output(out -> writer.write(schema,out));
+            this.diff(schema);
+        }
+    }
 
-            logger.info("\n"+jsonSchema);
+    /**
+     * Log how the schema drifted from the baseline schema, if one is set. The baseline is a {@link SchemaCheckpoint}
+     * file, which keeps keys as values so $ prefixed keys read back as they were. When the file does not exist yet the
+     * schema is saved to it, as the baseline of the next runs. The baseline is indexed once and kept.
+     * @param schema - the new schema, null if no documents were read.
+     */
+    private void diff(SchemaNode schema) throws IOException {
+        if(baseline==null || baseline.isEmpty()){
+            return;
+        }
+        if(baselineIndex==null){
+            Path path = Paths.get(baseline);
+            if(!Files.exists(path)){
+                SchemaCheckpoint checkpoint = new SchemaCheckpoint();
+                checkpoint.setSchemaNode(schema);
+                checkpoint.save(path);
+                logger.info("Saved the schema as baseline: "+baseline);
+                return;
+            }
+            baselineIndex = SchemaIndex.of(SchemaCheckpoint.load(path).getSchema());
+        }
+        SchemaDiff diff = SchemaDiff.between(baselineIndex,SchemaIndex.of(schema==null? null : schema.toDocument()));
+        if(diff.isEmpty()){
+            logger.info("Schema unchanged since baseline: "+baseline);
+        } else {
+            logger.warn("["+diff.getDifferences().size()+"] schema changes since baseline: "+baseline+"\n"+diff);
+        }
+    }
+
+    /**
+     * Stream the output to the configured file, or to standard out when no file is set.
+     * @param write - writes the output to the stream.
+     */
+    private void output(Consumer<OutputStream> write) throws IOException {
+        if(output==null || output.isEmpty()){
+            write.accept(System.out);
+            return;
+        }
+        try(OutputStream out = Files.newOutputStream(Paths.get(output))){
+            write.accept(out);
         }
+        logger.info("Schema written to: "+output);
     }
 
 	public static void main(String[] args) {
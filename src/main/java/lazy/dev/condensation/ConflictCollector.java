@@ -0,0 +1,170 @@
+package lazy.dev.condensation;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the conflicts found while generating a schema instead of logging each one.
+ * Conflicts are counted per path, such as a.items[].id, with a few distinct examples of the types that conflicted,
+ * nothing is formatted until {@link #log(Logger, String)} writes a single summary. Memory is bounded: at most
+ * {@link #MAX_KEYS} paths are tracked, conflicts on other paths are only counted, and each path keeps at most
+ * {@link #MAX_EXAMPLES} examples.
+ * Safe to use from several threads, partitions of a collection share one collector.
+ */
+final class ConflictCollector {
+
+    static final int MAX_KEYS = 1_000;
+    static final int MAX_EXAMPLES = 3;
+    /** Number of paths, with the most conflicts, listed in the summary. */
+    private static final int SUMMARY_KEYS = 20;
+
+    /** Why two values conflicted. */
+    enum Reason { MISMATCHED_TYPES, MIXED_LIST }
+
+    private final Map<String,KeyConflicts> keys = new ConcurrentHashMap<>();
+    private final LongAdder untracked = new LongAdder();
+
+    /**
+     * Record a conflict between two nodes of the same path.
+     * @param path - the path.
+     * @param n1 - the first node.
+     * @param n2 - the second node.
+     */
+    void record(String path, SchemaNode n1, SchemaNode n2){
+        this.record(path,new Example(Reason.MISMATCHED_TYPES,n1.getType(),this.classOf(n1),n2.getType(),this.classOf(n2)));
+    }
+
+    /**
+     * Record a list whose elements have different classes.
+     * @param path - the path of the list.
+     * @param type - the type of the list.
+     */
+    void recordMixedList(String path, Type type){
+        this.record(path,new Example(Reason.MIXED_LIST,type,null,null,null));
+    }
+
+    /**
+     * @return the number of conflicts recorded for each tracked path.
+     */
+    Map<String,Long> getCounts(){
+        Map<String,Long> counts = new LinkedHashMap<>();
+        for(Map.Entry<String,KeyConflicts> key : keys.entrySet()){
+            counts.put(key.getKey(),key.getValue().count.sum());
+        }
+        return counts;
+    }
+
+    /**
+     * @return the total number of conflicts recorded, untracked paths included.
+     */
+    long getTotal(){
+        long total = untracked.sum();
+        for(KeyConflicts conflicts : keys.values()){
+            total += conflicts.count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Log a single summary of the conflicts, listing the paths with the most conflicts and their examples.
+     * Nothing is logged if there were no conflicts.
+     * @param logger - the logger to warn.
+     * @param collection - the name of the collection, for the message.
+     */
+    void log(Logger logger, String collection){
+        long total = this.getTotal();
+        if(total==0 || !logger.isWarnEnabled()){
+            return;
+        }
+        List<Map.Entry<String,KeyConflicts>> sorted = new ArrayList<>(keys.entrySet());
+        sorted.sort(Comparator.comparingLong((Map.Entry<String,KeyConflicts> e) -> e.getValue().count.sum()).reversed());
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("[").append(total).append("] conflicts on [").append(keys.size()).append("] paths in collection [").append(collection).append("]");
+        if(untracked.sum()>0){
+            summary.append(", [").append(untracked.sum()).append("] on paths past the first ").append(MAX_KEYS);
+        }
+        for(Map.Entry<String,KeyConflicts> key : sorted.subList(0,Math.min(SUMMARY_KEYS,sorted.size()))){
+            summary.append("\n  ").append(key.getKey()).append(" [").append(key.getValue().count.sum()).append("]: ");
+            synchronized(key.getValue().examples){
+                summary.append(key.getValue().examples);
+            }
+        }
+        logger.warn(summary.toString());
+    }
+
+    private void record(String key, Example example){
+        KeyConflicts conflicts = keys.get(key);
+        if(conflicts==null){
+            if(keys.size()>=MAX_KEYS){
+                untracked.increment();
+                return;
+            }
+            conflicts = keys.computeIfAbsent(key,k -> new KeyConflicts());
+        }
+        conflicts.count.increment();
+        if(conflicts.examples.size()<MAX_EXAMPLES){
+            synchronized(conflicts.examples){
+                if(conflicts.examples.size()<MAX_EXAMPLES){
+                    conflicts.examples.add(example);
+                }
+            }
+        }
+    }
+
+    /** The class of the values of a node, or of its elements for a list. */
+    private Class<?> classOf(SchemaNode node){
+        return node.getType().isList() && node.getElements()!=null? node.getElements().getValueClass() : node.getValueClass();
+    }
+
+    private static class KeyConflicts {
+        private final LongAdder count = new LongAdder();
+        private final Set<Example> examples = new LinkedHashSet<>();
+    }
+
+    /** The types of a conflict, only formatted for the summary. */
+    private static class Example {
+        private final Reason reason;
+        private final Type t1, t2;
+        private final Class<?> c1, c2;
+
+        private Example(Reason reason, Type t1, Class<?> c1, Type t2, Class<?> c2){
+            this.reason=reason;
+            this.t1=t1;
+            this.c1=c1;
+            this.t2=t2;
+            this.c2=c2;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(this==o){ return true; }
+            if(!(o instanceof Example)){ return false; }
+            Example that = (Example) o;
+            return reason==that.reason && t1==that.t1 && t2==that.t2 && c1==that.c1 && c2==that.c2;
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(reason,t1,c1,t2,c2);
+        }
+
+        @Override
+        public String toString(){
+            if(reason==Reason.MIXED_LIST){
+                return t1+" with elements of mixed types";
+            }
+            return t1+":"+(c1==null? null : c1.getSimpleName())+" != "+t2+":"+(c2==null? null : c2.getSimpleName());
+        }
+    }
+}
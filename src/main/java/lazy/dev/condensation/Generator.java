@@ -1,36 +1,131 @@
 package lazy.dev.condensation;
 
+import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.BsonReader;
+import org.bson.BsonType;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
 import org.bson.conversions.Bson;
+import org.bson.io.ByteBufferBsonInput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 import static lazy.dev.condensation.Validator.ValidationException;
 
 
 /**
- * The heart of the application. Processes a {@link MongoCollection} to generate a {@link Document} chema.
+ * The heart of the application. Processes a {@link MongoCollection} to generate a {@link Document} schema.
+ * The schema is built as a tree of {@link SchemaNode}s which keep the shape of the documents but none of their values.
  */
 public class Generator {
 
     private static Logger logger = LoggerFactory.getLogger(Generator.class);
 
+    /** Upper bound on the shape fingerprints remembered per scan, keeps memory bounded when every document differs. */
+    private static final int MAX_SEEN_SHAPES = 100_000;
+
+    private static final String ID = "_id";
+    /** Ends the path of the elements of a list in the conflicts, a.items[].id, like in {@link SchemaStatistics}. */
+    private static final String ELEMENTS = SchemaIndex.ELEMENTS;
+
+    /** Decodes the raw BSON _id of the last document a checkpoint merged. */
+    private static final DocumentCodec ID_CODEC = new DocumentCodec();
+
+    /** Number of elements read of each list when {@link Setting#TRUNCATE_LISTS} pushes $slice down to the server. */
+    private static final int LIST_SLICE = 10;
+
+    /** Number of documents read in full to find the list paths to slice when {@link Setting#TRUNCATE_LISTS} is on. */
+    private static final int SLICE_PROBE = 1_000;
+
+    /** Size of the memory mapped chunks a dump is split into, each chunk is read by one worker. */
+    private static final long DUMP_CHUNK = 64L*1024*1024;
+
+    /** Number of documents handed to the pipeline workers at once when no batch size is set. */
+    private static final int PIPELINE_BATCH = 1_000;
+
+    /** Marks the end of the cursor in the pipeline's queue, every worker puts it back for the next one. */
+    private static final List<Object> END_OF_CURSOR = new ArrayList<>(0);
+
     private String collectionName;
     private Bson query;
+    private Bson projection;
+    private Map<String,Integer> slices = new LinkedHashMap<>();
     private Map<Setting,Boolean> settings;
-    private MongoCollection mongoCollection;
+    private MongoCollection<Document> mongoCollection;
+    private Path dump;
     private Validator validator;
+    private MeterRegistry meterRegistry;
+    private GeneratorMetrics metrics;
+    private ConflictCollector conflicts = new ConflictCollector();
+    private int partitions = 1;
+    private int aggregationDepth = 0;
+    private long sampleSize = 1_000_000;
+    private int convergence = 1_000;
+    private int listSample = ListSummary.ALL;
+    private int batchSize = 0;
+    private int prefetch = 0;
+    private int pipelineWorkers = 1;
+    private ReadPreference readPreference;
+    private long maxTimeMS = 0;
+    private long documentsPerSecond = 0;
+    private long bytesPerSecond = 0;
+    private ScanThrottle throttle;
 
     /**
      * Settings for this Generator.
      */
     public enum Setting {
         MARK_CONFLICTS(true),
-        TRUNCATE_LISTS(true);
+        /** Only describe the first element of each list. */
+        TRUNCATE_LISTS(true),
+        /** Skip documents whose {@link ShapeFingerprint} has already been merged into the schema. */
+        SKIP_SEEN_SHAPES(true),
+        /** Read documents as raw BSON and describe them from their field names and BSON types, without decoding values. */
+        RAW_BSON(false),
+        /** Pause before fetching the next batch when batches get slow, see {@link ScanThrottle}. */
+        ADAPTIVE_BACKOFF(false);
         boolean isOn;
         Setting(boolean isOn){
             this.isOn=isOn;
@@ -51,14 +146,68 @@ public class Generator {
         this.settings = Setting.getDefaultSettings();
     }
 
+    /**
+     * Copy the configuration of another generator, but not its collection.
+     * @param generator - the generator to copy.
+     */
+    private Generator(Generator generator){
+        this.query = generator.query;
+        this.projection = generator.projection;
+        this.slices = new LinkedHashMap<>(generator.slices);
+        this.settings = new HashMap<>(generator.settings);
+        this.validator = generator.validator;
+        this.meterRegistry = generator.meterRegistry;
+        this.partitions = generator.partitions;
+        this.aggregationDepth = generator.aggregationDepth;
+        this.sampleSize = generator.sampleSize;
+        this.convergence = generator.convergence;
+        this.listSample = generator.listSample;
+        this.batchSize = generator.batchSize;
+        this.prefetch = generator.prefetch;
+        this.pipelineWorkers = generator.pipelineWorkers;
+        this.readPreference = generator.readPreference;
+        this.maxTimeMS = generator.maxTimeMS;
+        this.documentsPerSecond = generator.documentsPerSecond;
+        this.bytesPerSecond = generator.bytesPerSecond;
+    }
+
+    /**
+     * Copy this generator's configuration, but not its collection, so another collection or query can be condensed
+     * concurrently without changing this generator.
+     * @return the new generator.
+     */
+    public Generator copy(){
+        return new Generator(this);
+    }
+
     /**
      * Create a generator for a specific {@link MongoCollection}
      * @param mongoCollection - the mongo collection.
      * @return the generator.
      */
-    public Generator forCollection(MongoCollection mongoCollection){
+    public Generator forCollection(MongoCollection<Document> mongoCollection){
         this.mongoCollection = mongoCollection;
+        this.dump = null;
         this.collectionName = mongoCollection.getNamespace().getCollectionName();
+        this.metrics = null;
+        return this;
+    }
+
+    /**
+     * Create a generator for a collection dumped to a file, without a server: a mongodump .bson file or a mongoexport
+     * extended JSON file with one document per line (.json, .ndjson or .jsonl), either of them possibly gzipped (.gz).
+     * A file is memory mapped and split into chunks of whole documents that are read by as many workers as
+     * partitions, see {@link #withPartitions(int)}. A gzipped file is read as a stream on a single worker.
+     * Dumps can only be condensed with {@link #generateSchema()} and the methods like it, the query and projection are
+     * not applied and documents are always described from their raw BSON, see {@link BsonDump} and {@link JsonDump}.
+     * @param dump - the path of the dump.
+     * @return the generator.
+     */
+    public Generator forDump(Path dump){
+        this.dump = dump;
+        this.mongoCollection = null;
+        this.collectionName = dump.getFileName().toString().replaceFirst("\\.(bson|json|ndjson|jsonl)(\\.gz)?$","");
+        this.metrics = null;
         return this;
     }
 
@@ -72,6 +221,173 @@ public class Generator {
         return this;
     }
 
+    /**
+     * Limit the fields read from the server, the schema only describes the fields the projection returns.
+     * For example Projections.exclude("attachment") keeps a large binary field from being sent over the network.
+     * @param projection - a projection of included or excluded paths, null to read whole documents.
+     * @return the generator.
+     */
+    public Generator withProjection(Bson projection){
+        this.projection=projection;
+        return this;
+    }
+
+    /**
+     * Only read the first elements of the list at a path, with a $slice projection pushed down to the server.
+     * When {@link Setting#TRUNCATE_LISTS} is on every list path found in the first documents read is sliced automatically.
+     * Slices apply to documents read with find, $sample batches read whole lists.
+     * @param path - the dotted path of the list, it must not go through another list.
+     * @param limit - the number of elements to read.
+     * @return the generator.
+     */
+    public Generator withSlice(String path, int limit){
+        if(limit<1){
+            throw new IllegalArgumentException("Slice limit must be at least 1, found: "+limit);
+        }
+        this.slices.put(path,limit);
+        return this;
+    }
+
+    /**
+     * Scan the collection in parallel, split into _id ranges that are each read on their own cursor and worker.
+     * Only collections whose _ids are all ObjectIds or all numbers can be split, others are scanned on one cursor.
+     * @param partitions - the number of ranges to split the collection into, 1 to scan on a single cursor.
+     * @return the generator.
+     */
+    public Generator withPartitions(int partitions){
+        if(partitions<1){
+            throw new IllegalArgumentException("Partitions must be at least 1, found: "+partitions);
+        }
+        this.partitions=partitions;
+        return this;
+    }
+
+    /**
+     * Set the number of documents the server returns in each batch of a scan.
+     * @param batchSize - the documents per batch, 0 for the server's default.
+     * @return the generator.
+     */
+    public Generator withBatchSize(int batchSize){
+        if(batchSize<0){
+            throw new IllegalArgumentException("Batch size must not be negative, found: "+batchSize);
+        }
+        this.batchSize=batchSize;
+        return this;
+    }
+
+    /**
+     * Pipeline scans: every cursor is read on a fetch thread of its own, which hands batches over a bounded queue to
+     * workers that describe and merge them. The next batch is then fetched while the last one is merged, so on a slow
+     * link the scan takes about as long as the slower of the two instead of their sum. The fetch thread waits when the
+     * queue is full, holding at most the prefetched batches in memory.
+     * Each worker builds its own schema, combined once the cursor is exhausted. With partitions every partition's
+     * cursor gets its own pipeline.
+     * @param prefetch - the number of batches fetched ahead of the workers, 0 to read and merge on the same thread.
+     * @param workers - the number of threads describing and merging batches.
+     * @return the generator.
+     */
+    public Generator withPipelining(int prefetch, int workers){
+        if(prefetch<0 || workers<1){
+            throw new IllegalArgumentException("Prefetch must not be negative and workers must be at least 1, found: "+prefetch+","+workers);
+        }
+        this.prefetch=prefetch;
+        this.pipelineWorkers=workers;
+        return this;
+    }
+
+    /**
+     * Read from the members of the replica set the read preference selects, for example secondaries so a scan does not
+     * compete with the traffic on the primary.
+     * @param readPreference - the read preference, null for the collection's own.
+     * @return the generator.
+     */
+    public Generator withReadPreference(ReadPreference readPreference){
+        this.readPreference=readPreference;
+        return this;
+    }
+
+    /**
+     * Limit the time the server spends on the short queries run before a scan: the probe of the first documents for
+     * their lists and the lookups of the smallest and largest _id that split a collection into partitions. A query
+     * that runs over fails the schema generation.
+     * The cursors that read the collection itself, scans, resumes and aggregations, are not limited: the server counts
+     * the time of every batch of a cursor against a single limit, so any limit would fail a scan of a large enough
+     * collection part way through. Use {@link #withThrottle(long, long)} to bound the load of a scan instead.
+     * @param maxTime - the time limit, 0 for none.
+     * @param unit - the unit of the time limit.
+     * @return the generator.
+     */
+    public Generator withMaxTime(long maxTime, TimeUnit unit){
+        if(maxTime<0){
+            throw new IllegalArgumentException("Max time must not be negative, found: "+maxTime);
+        }
+        this.maxTimeMS=unit.toMillis(maxTime);
+        return this;
+    }
+
+    /**
+     * Rate limit the documents read by a scan, shared by all of its cursors. See {@link ScanThrottle}.
+     * @param documentsPerSecond - the documents read per second, 0 for no limit.
+     * @param bytesPerSecond - the bytes read per second, 0 for no limit. Only raw BSON documents have a size, so a byte
+     *                       rate requires {@link Setting#RAW_BSON} and a scan without it is rejected.
+     * @return the generator.
+     */
+    public Generator withThrottle(long documentsPerSecond, long bytesPerSecond){
+        if(documentsPerSecond<0 || bytesPerSecond<0){
+            throw new IllegalArgumentException("Rates must not be negative, found: "+documentsPerSecond+","+bytesPerSecond);
+        }
+        this.documentsPerSecond=documentsPerSecond;
+        this.bytesPerSecond=bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Discover key paths and their BSON types inside MongoDB with an aggregation pipeline instead of reading documents.
+     * Only one summary row per distinct path and type comes back, which is merged into the schema.
+     * Keys nested deeper than the depth are not discovered, documents and lists at the last level are described as empty.
+     * @param depth - the number of levels of keys to discover, the elements of a list count as a level.
+     *                0 to read the documents instead.
+     * @return the generator.
+     */
+    public Generator withAggregationDepth(int depth){
+        if(depth<0){
+            throw new IllegalArgumentException("Aggregation depth must not be negative, found: "+depth);
+        }
+        this.aggregationDepth=depth;
+        return this;
+    }
+
+    /**
+     * Configure {@link #sampleSchema()}.
+     * @param sampleSize - the maximum number of documents to sample.
+     * @param convergence - stop sampling once this many consecutive documents added nothing to the schema.
+     * @return the generator.
+     */
+    public Generator withSampling(long sampleSize, int convergence){
+        if(sampleSize<1 || convergence<1){
+            throw new IllegalArgumentException("Sample size and convergence must be at least 1, found: "+sampleSize+","+convergence);
+        }
+        this.sampleSize=sampleSize;
+        this.convergence=convergence;
+        return this;
+    }
+
+    /**
+     * Limit the number of elements inspected in each list, taken from its head and at an even stride over the rest.
+     * Keeps the cost of describing a list flat however long it is, at the risk of missing a mismatched element.
+     * Raw BSON lists are only inspected from their head, the rest of their elements are skipped without decoding.
+     * Has no effect when {@link Setting#TRUNCATE_LISTS} is on, only the first non null element is described then.
+     * @param elements - the number of elements to inspect, {@link Integer#MAX_VALUE} to inspect every element.
+     * @return the generator.
+     */
+    public Generator withListSampling(int elements){
+        if(elements<1){
+            throw new IllegalArgumentException("List sampling must inspect at least 1 element, found: "+elements);
+        }
+        this.listSample=elements;
+        return this;
+    }
+
     /**
      * Override settings for this generator.
      * @param settings - the settings you want to override.
@@ -92,276 +408,1415 @@ public class Generator {
         return this;
     }
 
+    /**
+     * Record metrics of the scans and merges in a Micrometer registry, see {@link GeneratorMetrics} for the meters.
+     * @param meterRegistry - the registry, null to record nothing.
+     * @return the generator.
+     */
+    public Generator withMeterRegistry(MeterRegistry meterRegistry){
+        this.meterRegistry=meterRegistry;
+        this.metrics=null;
+        return this;
+    }
+
     /**
      * Entry point into the Generator. Takes a mongo collection and creates a single document schema.
      * @return the document schema.
      */
     public Document generateSchema(){
-        // Some internal checks before schema generation.
-        if(this.mongoCollection==null){
-            throw new RuntimeException("No Mongo Collection found for this Generator. Are you using the #forCollection method?");
+        SchemaNode schema = this.generateSchemaNode();
+        return schema==null? null : schema.toDocument();
+    }
+
+    /**
+     * Generate the schema like {@link #generateSchema()} but return its tree without rendering it as a {@link Document},
+     * for example to stream it out with a {@link SchemaWriter}.
+     * @return the document node of the schema, null if no documents were read.
+     */
+    public SchemaNode generateSchemaNode(){
+        return this.generate(false).schema;
+    }
+
+    /**
+     * Generate the schema like {@link #generateSchema()} and collect statistics of every path in the same scan:
+     * how often it is found, how often it is null, the BSON types of its values and the lengths of its lists.
+     * Every document is walked for the statistics, even when {@link Setting#SKIP_SEEN_SHAPES} skips describing it.
+     * With an aggregation depth the statistics come from the aggregated rows, without list lengths.
+     * @return the statistics holding the document schema.
+     */
+    public SchemaStatistics generateStatistics(){
+        Scan scan = this.generate(true);
+        scan.statistics.setSchema(scan.schema==null? null : scan.schema.toDocument());
+        return scan.statistics;
+    }
+
+    /**
+     * Get the conflicts found by the last schema generated, counted per path such as a.items[].id.
+     * Only the first {@link ConflictCollector#MAX_KEYS} paths with conflicts are counted.
+     * @return the number of conflicts of each path, empty if there were none.
+     */
+    public Map<String,Long> getConflicts(){
+        return conflicts.getCounts();
+    }
+
+    /**
+     * Scan the collection with the configured strategy.
+     * @param statistics - whether to collect {@link SchemaStatistics}.
+     * @return the scan holding the schema.
+     */
+    private Scan generate(boolean statistics){
+        this.checkConfiguration();
+
+        logger.info("Processing collection: "+ collectionName);
+        logger.info("Generating schema for collection ["+ collectionName+"] with query: "+query);
+
+        Scan scan;
+        if(this.dump!=null){
+            scan = this.scanDump(statistics);
+        } else if(this.aggregationDepth>0){
+            scan = this.aggregate(statistics);
+        } else if(this.partitions>1){
+            scan = this.scanPartitions(this.getProjection(this.probe()),statistics);
+        } else {
+            scan = this.scan(this.getCursor(this.query,this.getProjection(this.probe())),statistics);
+        }
+
+        logger.info("["+scan.count+"] "+ collectionName +" documents processed, ["+scan.merged+"] merged into the schema.");
+        if(throttle.getThrottledNanos()>0){
+            logger.info("Scan of collection ["+collectionName+"] throttled for ["+TimeUnit.NANOSECONDS.toMillis(throttle.getThrottledNanos())+"] ms.");
+        }
+        conflicts.log(logger,collectionName);
+        this.metrics.schema(scan.schema);
+        return scan;
+    }
+
+    /**
+     * Generate a schema for every collection in the database, condensing up to the given number of collections at once.
+     * Each collection gets its own copy of this generator's configuration, query included, so this generator is left untouched.
+     * Collections are queued by their size: half of the workers take the smallest collection left and the other half
+     * the largest, so the largest collections start early while the small ones keep finishing behind them.
+     * Collections are listed, sized and scanned through the same view of the database, with the read preference if one is set.
+     * System collections are skipped and a collection that fails is logged and left out of the result.
+     * @param database - the database to condense.
+     * @param workers - the maximum number of collections condensed at once.
+     * @return the schema of each collection by name, null for collections without matching documents.
+     */
+    public Map<String,Document> generateSchemas(MongoDatabase database, int workers){
+        Map<String,Document> schemas = new TreeMap<>();
+        this.generateSchemaNodes(database,workers).forEach((name,schema) -> schemas.put(name,schema==null? null : schema.toDocument()));
+        return schemas;
+    }
+
+    /**
+     * Generate a schema for every collection in the database like {@link #generateSchemas(MongoDatabase, int)}, but
+     * return their trees without rendering them as {@link Document}s.
+     * @param database - the database to condense.
+     * @param workers - the maximum number of collections condensed at once.
+     * @return the document node of each collection's schema by name, null for collections without matching documents.
+     */
+    public Map<String,SchemaNode> generateSchemaNodes(MongoDatabase database, int workers){
+        if(workers<1){
+            throw new IllegalArgumentException("Workers must be at least 1, found: "+workers);
         }
         if(this.validator==null){
             throw new RuntimeException("No Validator found for this Generator. Are you using the #withValidator method?");
         }
 
-        return this.generateSchema(this.getDocumentSet());
+        MongoDatabase view = readPreference==null? database : database.withReadPreference(readPreference);// Size and scan the same members
+        Map<String,Long> sizes = new HashMap<>();
+        for(String name : view.listCollectionNames()){
+            if(!name.startsWith("system.")){
+                sizes.put(name,view.getCollection(name).count());
+            }
+        }
+        List<String> names = new ArrayList<>(sizes.keySet());
+        names.sort(Comparator.comparing(sizes::get));
+        Deque<String> queue = new ConcurrentLinkedDeque<>(names);
+
+        logger.info("Generating schemas for ["+names.size()+"] collections in database ["+database.getName()+"] with ["+workers+"] workers.");
+
+        Map<String,SchemaNode> schemas = Collections.synchronizedMap(new TreeMap<>());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,Math.min(workers,names.size())));
+        for(int i=0; i<workers && i<names.size(); i++){
+            boolean largestFirst = i%2==1;
+            executor.execute(() -> {
+                String name;
+                while((name = largestFirst? queue.pollLast() : queue.pollFirst())!=null){
+                    try {
+                        schemas.put(name,this.copy().forCollection(view.getCollection(name)).generateSchemaNode());
+                    } catch(RuntimeException e){
+                        logger.error("Unable to generate a schema for collection: "+name, e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+        } catch(InterruptedException e){
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while generating schemas for database: "+database.getName(), e);
+        }
+
+        logger.info("["+schemas.size()+"] of ["+names.size()+"] collections condensed.");
+        return schemas;
     }
 
     /**
-     * Get a set of unique documents in this collection.
+     * Generate a schema from a random sample of the documents in the collection, read with $sample in batches.
+     * Sampling stops as soon as the configured number of consecutive documents added no new path or type to the
+     * schema, or once the maximum number of documents has been read.
+     * @return the sample holding the schema, the number of documents read and how confident the sample is.
      */
-    private Set<Document> getDocumentSet(){
-        collectionName = mongoCollection.getNamespace().getCollectionName();
-        logger.info("Processing collection: "+ collectionName);
+    public SchemaSample sampleSchema(){
+        this.checkConfiguration();
 
-        MongoCursor cursor;
+        logger.info("Sampling collection ["+ collectionName+"] with query: "+query);
 
-        if(this.query==null){
-            cursor = mongoCollection.find().iterator();// If no query is specified use all documents.
-        } else {
-            cursor = mongoCollection.find(query).iterator();
+        Scan scan = new Scan();
+        scan.trackChanges = true;
+
+        while(scan.count<sampleSize && scan.unchanged<convergence){
+            long before = scan.count;
+            List<Bson> pipeline = new ArrayList<>();
+            if(query!=null){
+                pipeline.add(Aggregates.match(query));
+            }
+            pipeline.add(Aggregates.sample((int) Math.min(convergence,sampleSize-scan.count)));
+            if(projection!=null){
+                pipeline.add(Aggregates.project(projection));
+            }
+
+            MongoCursor<?> cursor = this.getCollection().aggregate(pipeline).allowDiskUse(true).iterator();
+            try {
+                while(cursor.hasNext() && scan.count<sampleSize && scan.unchanged<convergence){
+                    scan.accept(cursor.next());
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if(scan.count==before){
+                break;// No documents match
+            }
         }
 
-        Set<Document> documentSet = new HashSet<>();
+        SchemaSample sample = new SchemaSample(scan.schema==null? null : scan.schema.toDocument(),
+                scan.count, scan.unchanged>=convergence, scan.unchanged);
+        logger.info("["+sample.getDocumentsRead()+"] "+ collectionName +" documents sampled, converged: "+sample.isConverged()+
+                ", confidence: "+sample.getConfidence());
+        conflicts.log(logger,collectionName);
+        return sample;
+    }
+
+    /**
+     * Continue a checkpoint by merging only the documents whose _id is greater than its last _id, in _id order.
+     * Documents are compared within their BSON type, so if the collection mixes _id types only those of the last
+     * _id's type are picked up.
+     * The batch size and throttle apply, but documents are always merged on the calling thread in _id order, without
+     * partitions or pipelining, and like every scan the cursor has no max time.
+     * The last _id is stored decoded, for example as an {@link org.bson.types.ObjectId}, even when {@link Setting#RAW_BSON} is on.
+     * @param checkpoint - the checkpoint to continue, an empty checkpoint condenses the whole collection.
+     * @return the checkpoint, updated with the new documents.
+     */
+    public SchemaCheckpoint resume(SchemaCheckpoint checkpoint){
+        this.checkConfiguration();
 
-        while(cursor.hasNext()){
-            Document doc = (Document) cursor.next();
+        logger.info("Resuming collection ["+ collectionName+"] after _id: "+checkpoint.getLastId());
 
-            if(!documentSet.contains(doc)){
-                documentSet.add(doc);
+        Bson filter = this.query;
+        if(checkpoint.getLastId()!=null){
+            Bson after = Filters.gt(ID,checkpoint.getLastId());
+            filter = (filter==null)? after : Filters.and(filter,after);
+        }
+        MongoCursor<?> cursor = this.getFind(filter,this.getProjection(this.getListPaths(checkpoint.getSchemaNode())))
+                .sort(Sorts.ascending(ID))
+                .iterator();
+
+        Scan scan = new Scan();
+        scan.schema = checkpoint.getSchemaNode();
+        Object lastId = null;
+        try {
+            while(cursor.hasNext()){
+                Object doc = cursor.next();
+                throttle.acquire(doc);
+                scan.accept(doc);
+                lastId = doc instanceof RawBsonDocument? ((RawBsonDocument) doc).get(ID) : ((Document) doc).get(ID);
             }
+        } finally {
+            cursor.close();
         }
+        if(lastId instanceof BsonValue){// Only the last _id is decoded, like the driver decodes it
+            lastId = ID_CODEC.decode(new BsonDocumentReader(new BsonDocument(ID,(BsonValue) lastId)),DecoderContext.builder().build()).get(ID);
+        }
+        if(lastId!=null){
+            checkpoint.setLastId(lastId);
+        }
+        checkpoint.setSchemaNode(scan.schema);
+        checkpoint.addDocuments(scan.count);
+
+        logger.info("["+scan.count+"] new "+ collectionName +" documents processed, ["+scan.merged+"] merged into the schema.");
+        conflicts.log(logger,collectionName);
+        return checkpoint;
+    }
+
+    /**
+     * Follow the collection's change stream and merge every inserted, updated or replaced document into the checkpoint.
+     * Updates are merged as the full document after the update. Blocks until the calling thread is interrupted.
+     * Starts from the checkpoint's resume token, or from now if it has none. The query is not applied to changes.
+     * Change streams need a replica set, a single node replica set is enough.
+     * @param checkpoint - the checkpoint to keep up to date.
+     * @param onChange - called with the checkpoint every time the schema changes, for example to save it.
+     */
+    public void follow(SchemaCheckpoint checkpoint, Consumer<SchemaCheckpoint> onChange){
+        this.checkConfiguration();
 
-        logger.info("["+documentSet.size()+"] unique "+ collectionName +" documents found.");
+        logger.info("Following changes to collection ["+ collectionName+"] from resume token: "+checkpoint.getResumeToken());
 
-        return documentSet;
+        List<Bson> pipeline = Collections.singletonList(Aggregates.match(Filters.in("operationType",
+                OperationType.INSERT.getValue(), OperationType.UPDATE.getValue(), OperationType.REPLACE.getValue())));
+        ChangeStreamIterable<?> changeStream = this.getCollection().watch(pipeline)
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .maxAwaitTime(1,TimeUnit.SECONDS);
+        if(checkpoint.getResumeToken()!=null){
+            changeStream = changeStream.resumeAfter(checkpoint.getResumeToken());
+        }
+
+        Scan scan = new Scan();
+        scan.schema = checkpoint.getSchemaNode();
+        scan.trackChanges = true;
+        MongoCursor<? extends ChangeStreamDocument<?>> cursor = changeStream.iterator();
+        try {
+            while(!Thread.currentThread().isInterrupted()){
+                ChangeStreamDocument<?> change = cursor.tryNext();
+                if(change==null){
+                    continue;// Nothing happened within maxAwaitTime
+                }
+                checkpoint.setResumeToken(change.getResumeToken());
+                if(change.getFullDocument()==null){
+                    continue;// The document was deleted before the update could be looked up
+                }
+
+                long merged = scan.merged;
+                scan.accept(change.getFullDocument());
+                checkpoint.setSchemaNode(scan.schema);
+                checkpoint.addDocuments(1);
+                if(scan.merged>merged && scan.unchanged==0){
+                    onChange.accept(checkpoint);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
-     * Builds a document for a document set. The resulting document will contain every unique key,
-     * including nested keys, found in the document set.
-     * Use this method to ge
-     * @param documentSet - the document set to process.
-     * @return - the document schema.
+     * Some internal checks before schema generation, also starts recording the conflicts of a new run and registers
+     * the meters of the collection, so the workers of a scan share them without creating them.
      */
-    private Document generateSchema(Set<Document> documentSet){
-        logger.info("Generating schema for collection ["+ collectionName+"] with query: "+query);
+    private void checkConfiguration(){
+        if(this.mongoCollection==null && this.dump==null){
+            throw new RuntimeException("No Mongo Collection found for this Generator. Are you using the #forCollection method?");
+        }
+        if(this.validator==null){
+            throw new RuntimeException("No Validator found for this Generator. Are you using the #withValidator method?");
+        }
+        if(this.bytesPerSecond>0 && this.dump==null && !settings.get(Setting.RAW_BSON)){
+            throw new IllegalStateException("A byte rate can only be throttled with RAW_BSON on, decoded documents have no size.");
+        }
+        this.conflicts = new ConflictCollector();
+        this.throttle = new ScanThrottle(documentsPerSecond,bytesPerSecond,settings.get(Setting.ADAPTIVE_BACKOFF));
+        if(this.metrics==null){
+            this.metrics = new GeneratorMetrics(meterRegistry,collectionName);// Before any scan worker is forked
+        }
+    }
 
-        Iterator<Document> iterator = documentSet.iterator();
-        Document schema = null;
+    /**
+     * Get the collection to read documents from, as raw BSON when {@link Setting#RAW_BSON} is on.
+     */
+    private MongoCollection<?> getCollection(){
+        MongoCollection<Document> collection = this.getDocumentCollection();
+        return settings.get(Setting.RAW_BSON)? collection.withDocumentClass(RawBsonDocument.class) : collection;
+    }
 
-        while(iterator.hasNext()){
-            if(schema==null) {
-                schema = iterator.next();
-            } else {
-                Document doc = iterator.next();
+    /**
+     * Get the collection to read decoded documents from, with the read preference if one is set.
+     */
+    private MongoCollection<Document> getDocumentCollection(){
+        if(mongoCollection==null){
+            throw new UnsupportedOperationException("Dumps can only be condensed with #generateSchema, found dump: "+dump);
+        }
+        return readPreference==null? mongoCollection : mongoCollection.withReadPreference(readPreference);
+    }
+
+    /**
+     * Open a cursor over the documents in this collection that match the query.
+     * @param query - the query to match documents, null for all documents.
+     * @param projection - the projection to apply, null to read whole documents.
+     */
+    private MongoCursor<?> getCursor(Bson query, Bson projection){
+        return this.getFind(query,projection).iterator();
+    }
+
+    /**
+     * Find the documents in this collection that match the query, with the batch size applied.
+     * @param query - the query to match documents, null for all documents.
+     * @param projection - the projection to apply, null to read whole documents.
+     */
+    private FindIterable<?> getFind(Bson query, Bson projection){
+        MongoCollection<?> collection = this.getCollection();
+
+        FindIterable<?> find = query==null? collection.find() : collection.find(query);// If no query is specified use all documents.
+        if(batchSize>0){
+            find.batchSize(batchSize);
+        }
+        return find.projection(projection);
+    }
 
-                if(!schema.equals(doc)){
-                    schema = this.mergeDocuments(schema,doc);
+    /**
+     * Read the first documents in full to find the paths of their lists, so they can be sliced on the server.
+     * The documents are only walked for their lists, they are not merged, counted or checked for conflicts: the scan
+     * that follows reads them again.
+     * @return the list paths of the first documents, empty when {@link Setting#TRUNCATE_LISTS} is off.
+     */
+    private Set<String> probe(){
+        Set<String> lists = new LinkedHashSet<>();
+        if(!settings.get(Setting.TRUNCATE_LISTS)){
+            return lists;
+        }
+        MongoCollection<?> collection = this.getCollection();
+        FindIterable<?> find = (query==null? collection.find() : collection.find(query)).projection(projection).limit(SLICE_PROBE);
+        if(maxTimeMS>0){
+            find.maxTime(maxTimeMS,TimeUnit.MILLISECONDS);
+        }
+        MongoCursor<?> cursor = find.iterator();
+        try {
+            while(cursor.hasNext()){
+                this.addListPaths((Map<?,?>) cursor.next(),lists);
+            }
+        } finally {
+            cursor.close();
+        }
+        return lists;
+    }
+
+    /**
+     * Add the path of every list of a document reached through documents only, lists inside lists are cut by the
+     * outer slice. Works on {@link Document}s and on raw BSON, whose documents are maps and arrays are lists too.
+     */
+    private void addListPaths(Map<?,?> doc, Set<String> lists){
+        Deque<Map.Entry<String,Map<?,?>>> documents = new ArrayDeque<>();// (path, document) pairs to walk
+        documents.push(new AbstractMap.SimpleEntry<>(null,doc));
+        while(!documents.isEmpty()){
+            Map.Entry<String,Map<?,?>> next = documents.pop();
+            for(Map.Entry<?,?> field : next.getValue().entrySet()){
+                String path = next.getKey()==null? (String) field.getKey() : next.getKey()+"."+field.getKey();
+                if(field.getValue() instanceof List){
+                    lists.add(path);
+                } else if(field.getValue() instanceof Map){
+                    documents.push(new AbstractMap.SimpleEntry<>(path,(Map<?,?>) field.getValue()));
                 }
             }
         }
+    }
 
-        return schema;
+    /**
+     * Get the list paths of a known schema.
+     * @param known - a schema of the collection, null if none is known.
+     * @return the list paths, empty when {@link Setting#TRUNCATE_LISTS} is off.
+     */
+    private Set<String> getListPaths(SchemaNode known){
+        Set<String> lists = new LinkedHashSet<>();
+        if(known!=null && settings.get(Setting.TRUNCATE_LISTS)){
+            this.addListPaths(null,known,lists);
+        }
+        return lists;
     }
 
     /**
-     * Given two documents combine them and return the result.
-     * The new document will contain a set of all the keys in both documents.
-     * @param d1 - the first document.
-     * @param d2 - the second document.
-     * @return - the combined document.
+     * Combine the projection with the slices to push down to the server.
+     * Every list path is sliced too, unless it is already sliced or the projection names it.
+     * @param lists - the list paths found in the collection.
+     * @return the projection, null to read whole documents.
      */
-    private Document mergeDocuments(Document d1, Document d2){
-        if(d1==null && d2==null){
-            return null; // Both are null so their combination is null
-        } else if(d1==null){
-            return d2;  // One is null the other is not so their combination is the non null document
-        } else if(d2==null){
-            return d1;
+    private Bson getProjection(Set<String> lists){
+        Map<String,Integer> slices = new LinkedHashMap<>(this.slices);
+        for(String list : lists){
+            slices.putIfAbsent(list,LIST_SLICE);
+        }
+        if(slices.isEmpty()){
+            return projection;
         }
-        // Neither Document is null
 
-        if(d1.equals(d2)){ // If the documents are equal their combination is the same as one of the originals
-            return d1;
+        Set<String> projected = projection==null? Collections.emptySet()
+                : projection.toBsonDocument(BsonDocument.class,MongoClient.getDefaultCodecRegistry()).keySet();
+        List<Bson> fields = new ArrayList<>();
+        if(projection!=null){
+            fields.add(projection);
+        }
+        for(Map.Entry<String,Integer> slice : slices.entrySet()){
+            if(!this.overlaps(slice.getKey(),projected)){
+                fields.add(Projections.slice(slice.getKey(),slice.getValue()));
+            }
         }
-        // The documents are not null and not equal
+        return Projections.fields(fields);
+    }
 
-        d1 = this.mergeExistingKeys(d1,d2);
-        d1 = this.addMissingKeys(d1,d2);
+    /**
+     * Add the path of every list reached through documents only, lists inside lists are cut by the outer slice.
+     */
+    private void addListPaths(String prefix, SchemaNode node, Set<String> lists){
+        for(Map.Entry<String,SchemaNode> field : node.getFields().entrySet()){
+            String path = prefix==null? field.getKey() : prefix+"."+field.getKey();
+            Type type = field.getValue().getType();
+            if(type.isList()){
+                lists.add(path);
+            } else if(type.isDocument()){
+                this.addListPaths(path,field.getValue(),lists);
+            }
+        }
+    }
 
-        return d1;
+    /**
+     * Check whether a path is one of the projected paths, or holds or is held by one, the server rejects such projections.
+     */
+    private boolean overlaps(String path, Set<String> projected){
+        for(String other : projected){
+            if(other.equals(path) || other.startsWith(path+".") || path.startsWith(other+".")){
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Get the first element of the list and return that in a list.
-     * @param list - the list to process
-     * @return the first element of the list in a list.
+     * Builds a document schema by folding each document into the schema as the cursor produces it.
+     * The resulting schema will contain every unique key, including nested keys, found in the cursor.
+     * Only the schema is held in memory, so heap use is bounded by the schema's size rather than the collection's.
+     * @param cursor - the cursor to process, it is closed once exhausted.
+     * @param statistics - whether to collect {@link SchemaStatistics}.
+     * @return - the scan holding the schema.
      */
-    private List truncateList(List list){
-        if(list==null || list.isEmpty()){
-            return list;
+    private Scan scan(MongoCursor<?> cursor, boolean statistics){
+        if(prefetch>0){
+            return this.scanPipelined(cursor,statistics);
+        }
+        Scan scan = new Scan(statistics);
+        GeneratorMetrics metrics = this.metrics;
+        try {
+            while(true){
+                long start = System.nanoTime();
+                boolean hasNext = cursor.hasNext();// Fetches the next batch once the current one is exhausted
+                long wait = System.nanoTime()-start;
+                metrics.cursorWait(wait);
+                throttle.cursorWait(wait);
+                if(!hasNext){
+                    break;
+                }
+                Object doc = cursor.next();
+                throttle.acquire(doc);
+                scan.accept(doc);
+            }
+        } finally {
+            cursor.close();
         }
+        return scan;
+    }
+
+    /**
+     * Scan a cursor with a pipeline, see {@link #withPipelining(int, int)}. The first failure of the fetch thread or of
+     * a worker stops the others and is thrown.
+     * @param cursor - the cursor to process, it is closed once exhausted.
+     * @param statistics - whether to collect {@link SchemaStatistics}.
+     * @return the combined scan of every worker.
+     */
+    private Scan scanPipelined(MongoCursor<?> cursor, boolean statistics){
+        BlockingQueue<List<Object>> batches = new ArrayBlockingQueue<>(prefetch);
+        int batch = batchSize>0? batchSize : PIPELINE_BATCH;
+        GeneratorMetrics metrics = this.metrics;
+        ExecutorService executor = Executors.newFixedThreadPool(pipelineWorkers+1);
+        CompletionService<Scan> stages = new ExecutorCompletionService<>(executor);
+        try {
+            stages.submit(() -> {
+                try {
+                    List<Object> documents = new ArrayList<>(batch);
+                    while(true){
+                        long start = System.nanoTime();
+                        boolean hasNext = cursor.hasNext();
+                        throttle.cursorWait(System.nanoTime()-start);
+                        if(!hasNext){
+                            break;
+                        }
+                        Object doc = cursor.next();
+                        throttle.acquire(doc);
+                        documents.add(doc);
+                        if(documents.size()==batch){
+                            batches.put(documents);// Waits while the workers are behind
+                            documents = new ArrayList<>(batch);
+                        }
+                    }
+                    if(!documents.isEmpty()){
+                        batches.put(documents);
+                    }
+                    batches.put(END_OF_CURSOR);
+                } finally {
+                    cursor.close();
+                }
+                return null;
+            });
+            for(int i=0; i<pipelineWorkers; i++){
+                stages.submit(() -> {
+                    Scan scan = new Scan(statistics);
+                    while(true){
+                        long start = System.nanoTime();
+                        List<Object> documents = batches.take();
+                        metrics.cursorWait(System.nanoTime()-start);
+                        if(documents==END_OF_CURSOR){
+                            batches.put(END_OF_CURSOR);
+                            return scan;
+                        }
+                        documents.forEach(scan::accept);
+                    }
+                });
+            }
 
-        return (settings.get(Setting.TRUNCATE_LISTS))? this.newList(list.get(0)) : list;
+            Scan scan = new Scan(statistics);
+            for(int i=0; i<=pipelineWorkers; i++){
+                Scan stage = stages.take().get();
+                if(stage!=null){// The fetch thread has no scan
+                    scan.combine(stage);
+                }
+            }
+            return scan;
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scanning collection: "+collectionName, e);
+        } catch(ExecutionException e){
+            throw new RuntimeException("Unable to scan collection: "+collectionName, e.getCause());
+        } finally {
+            executor.shutdownNow();// Stops the other stages after a failure
+        }
     }
 
+    /**
+     * Split the collection into _id ranges and scan each range on its own cursor and worker.
+     * The partial schemas are combined with {@link #mergeDocuments(SchemaNode, SchemaNode)} as the workers finish.
+     * @param projection - the projection to apply, null to read whole documents.
+     * @param statistics - whether to collect {@link SchemaStatistics}.
+     * @return the combined scan of every partition.
+     */
+    private Scan scanPartitions(Bson projection, boolean statistics){
+        List<Bson> ranges = IdRangePartitioner.split(this.getDocumentCollection(),partitions,maxTimeMS);
+        logger.info("Scanning collection ["+ collectionName+"] in ["+ranges.size()+"] partitions.");
 
-    /** [ [], [], [] ] => */
-    private List<List> mergeNestedList(List<List> lists){
-        // TODO
-        throw new UnsupportedOperationException("Nested lists are not yet supported.");
-//        if(lists==null || lists.isEmpty()){
-//            return lists;
-//        }
-//        List nestedList = lists.get(0);
-//        Type nestedType = Type.getType(nestedList);
-//        if(nestedType.isDocument()){// [ [{}], [{}], [{}] ]
-//
-//
-//            for(Object element : nestedList){}
-//
-//            this.mergeDocumentList(nestedList)
-//
-//        } else if(nestedType.isDocumentList()){
-//
-//        } else if(nestedType.isNestedList()) {
-//
-//        }
-        // Simple List
+        ForkJoinPool pool = new ForkJoinPool(partitions);
+        try {
+            return pool.submit(() -> ranges.parallelStream()
+                    .map(range -> this.scan(this.getCursor(this.query==null? range : Filters.and(this.query,range),projection),statistics))
+                    .reduce(Scan::combine)
+                    .orElseGet(() -> new Scan(statistics))
+            ).get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scanning collection: "+collectionName, e);
+        } catch(ExecutionException e){
+            throw new RuntimeException("Unable to scan collection: "+collectionName, e.getCause());
+        } finally {
+            pool.shutdown();
+        }
     }
 
-    private List<List> mergeNestedLists(List<List> lists1, List<List> lists2){
-        // TODO actually build logic for this? or fail at Validation
-        throw new UnsupportedOperationException("Nested lists are not yet supported.");
+    /**
+     * Scan a dump file. Chunks of a file are scanned in parallel and combined like partitions.
+     * @param statistics - whether to collect {@link SchemaStatistics}.
+     * @return the combined scan of the dump.
+     */
+    private Scan scanDump(boolean statistics){
+        String name = dump.getFileName().toString();
+        boolean json = name.matches(".*\\.(json|ndjson|jsonl)(\\.gz)?$");
+        if(name.endsWith(".gz")){
+            Scan scan = new Scan(statistics);
+            try(InputStream in = new GZIPInputStream(Files.newInputStream(dump),1<<16)){
+                if(json){
+                    JsonDump.read(in,scan::accept);
+                } else {
+                    BsonDump.read(in,scan::accept);
+                }
+            } catch(IOException e){
+                throw new RuntimeException("Unable to read dump: "+dump, e);
+            }
+            return scan;
+        }
+
+        List<ByteBuffer> chunks;
+        try(FileChannel channel = FileChannel.open(dump,StandardOpenOption.READ)){
+            // Mappings stay valid once the channel is closed
+            chunks = json? JsonDump.split(channel,DUMP_CHUNK) : BsonDump.split(channel,DUMP_CHUNK);
+        } catch(IOException e){
+            throw new RuntimeException("Unable to read dump: "+dump, e);
+        }
+        logger.info("Scanning dump ["+dump+"] in ["+chunks.size()+"] chunks.");
+
+        ForkJoinPool pool = new ForkJoinPool(partitions);
+        try {
+            return pool.submit(() -> chunks.parallelStream()
+                    .map(chunk -> {
+                        Scan scan = new Scan(statistics);
+                        if(json){
+                            try {
+                                JsonDump.read(chunk,scan::accept);
+                            } catch(IOException e){
+                                throw new UncheckedIOException(e);
+                            }
+                        } else {
+                            BsonDump.read(chunk,scan::accept);
+                        }
+                        return scan;
+                    })
+                    .reduce(Scan::combine)
+                    .orElseGet(() -> new Scan(statistics))
+            ).get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scanning dump: "+dump, e);
+        } catch(ExecutionException e){
+            throw new RuntimeException("Unable to scan dump: "+dump, e.getCause());
+        } finally {
+            pool.shutdown();
+        }
     }
 
+    /**
+     * Discover the key paths and types with a {@link PathTypeAggregation} and merge the grouped rows into a schema.
+     * @param statistics - whether to collect {@link SchemaStatistics} from the rows.
+     * @return the scan holding the schema, its count is the number of documents matched on the server.
+     */
+    private Scan aggregate(boolean statistics){
+        Scan scan = new Scan(statistics);
+        List<Bson> pipeline = PathTypeAggregation.pipeline(this.query,this.aggregationDepth);
+        MongoCursor<Document> cursor = this.getDocumentCollection().aggregate(pipeline).allowDiskUse(true).iterator();
+        try {
+            while(cursor.hasNext()){
+                Document row = cursor.next();
+                Document id = (Document) row.get(PathTypeAggregation.ID);
+                @SuppressWarnings("unchecked")
+                List<String> path = (List<String>) id.get(PathTypeAggregation.PATH);// The keys of the path, null for list elements
+                BsonType bsonType = BsonTypes.fromAlias(id.getString(PathTypeAggregation.TYPE));
 
-    /** [{},{},{}] => [{}] **/
-    private List<Document> mergeDocumentList(List<Document> list){
-        if(list==null || list.isEmpty()){
-            return list;
+                long count = ((Number) row.get(PathTypeAggregation.COUNT)).longValue();
+                if(path.isEmpty()){
+                    scan.count += count;
+                }
+                if(scan.statistics!=null){
+                    scan.statistics.add(path,bsonType,count);
+                }
+                scan.schema = this.mergeDocuments(scan.schema,this.describePath(path,bsonType));
+                scan.merged++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return scan;
+    }
+
+    /**
+     * Describe a single path and type as a schema node, for example [ "a", null ] with STRING as { "a" : [ String ] }.
+     * @param path - the keys of the path, null keys stand for the elements of a list.
+     * @param bsonType - the type of the values at the path.
+     * @return the document node holding the path.
+     */
+    private SchemaNode describePath(List<String> path, BsonType bsonType){
+        SchemaNode node;
+        if(bsonType==BsonType.DOCUMENT){
+            node = SchemaNode.document();
+        } else if(bsonType==BsonType.ARRAY){
+            node = SchemaNode.list(Type.EMPTY_LIST,ArrayList.class);// Elements are described by their own paths
+        } else if(bsonType==BsonType.NULL){
+            node = SchemaNode.nullNode();
+        } else {
+            node = SchemaNode.simple(BsonTypes.getValueClass(bsonType));
         }
-        Document merged = null;
-        for(Document doc : list){
-            merged = this.mergeDocuments(merged,doc);
+
+        for(int i=path.size()-1; i>=0; i--){
+            String key = path.get(i);
+            if(key==null){
+                Type elementType = node.getType();
+                SchemaNode list = SchemaNode.list(elementType.isDocument()? Type.DOCUMENT_LIST :
+                        elementType.isList()? Type.NESTED_LIST :
+                        elementType.equals(Type.NULL)? Type.NULL_LIST : Type.SIMPLE_LIST, ArrayList.class);
+                list.setElements(node);
+                node = list;
+            } else {
+                SchemaNode document = SchemaNode.document();
+                document.put(key,node);
+                node = document;
+            }
         }
-        return this.newList(merged);
+        return node;
     }
 
-    /** [{},{},{}] x2 => [{}] **/
-    private List<Document> mergeDocumentLists(List<Document> l1, List<Document> l2){
-        if(l1==null && l2==null){
-            return null;
-        } else if(l1==null){
-            return this.mergeDocumentList(l2);
-        } else if(l2==null){
-            return this.mergeDocumentList(l1);
+    /**
+     * The state of a single pass over some documents: the schema built so far and the shapes already merged into it.
+     * Each cursor gets its own scan so that partitions can be scanned concurrently and combined afterwards.
+     */
+    private class Scan {
+        private SchemaNode schema;
+        private Set<Long> seenShapes = new HashSet<>();
+        private long count;
+        private long merged;
+        /** Whether to check if each merged document changes the schema, needed to keep {@link #unchanged} exact. */
+        private boolean trackChanges;
+        /** The number of consecutive documents, up to the last one, that added nothing to the schema. */
+        private long unchanged;
+        /** Statistics of every document, null unless collected. */
+        private SchemaStatistics statistics;
+        private GeneratorMetrics metrics;
+
+        private Scan(){
+            this(false);
         }
 
-        l1 = this.mergeDocumentList(l1);
-        l2 = this.mergeDocumentList(l2);
+        private Scan(boolean statistics){
+            this.statistics = statistics? new SchemaStatistics() : null;
+            this.metrics = Generator.this.metrics;
+        }
+
+        /**
+         * Fold a document, either a {@link Document} or a {@link RawBsonDocument}, into the schema.
+         * @param doc - the document to fold.
+         */
+        private void accept(Object doc){
+            count++;
+            metrics.document();
+            SchemaNode shape = null;
+            if(doc instanceof RawBsonDocument){
+                RawBsonDocument raw = (RawBsonDocument) doc;
+                metrics.bytes(raw.getByteBuffer().remaining());
+                if(statistics!=null){
+                    statistics.add(raw);
+                }
+                if(this.isNewShape(raw)){
+                    shape = Generator.this.describeDocument(raw);
+                }
+            } else {
+                if(statistics!=null){
+                    statistics.add((Document) doc);
+                }
+                if(this.isNewShape((Document) doc)){
+                    shape = Generator.this.describeDocument((Document) doc);
+                }
+            }
+
+            if(shape==null){
+                unchanged++;// A document with this shape was already merged
+                return;
+            }
+            if(trackChanges){
+                unchanged = (schema!=null && schema.covers(shape))? unchanged+1 : 0;
+            }
+            long start = System.nanoTime();
+            schema = Generator.this.mergeDocuments(schema,shape);
+            metrics.merged(System.nanoTime()-start);
+            merged++;
+        }
+
+        /**
+         * Combine another scan into this one, the other scan must not be used afterwards.
+         * @param other - the scan to combine.
+         * @return this scan.
+         */
+        private Scan combine(Scan other){
+            schema = Generator.this.mergeDocuments(schema,other.schema);
+            count += other.count;
+            merged += other.merged;
+            if(statistics!=null && other.statistics!=null){
+                statistics.combine(other.statistics);
+            }
+            return this;
+        }
 
-        if(l1.isEmpty() && l2.isEmpty()){
-            return l1;
-        } else if(l1.isEmpty()){
-            return l2;
-        } else if(l2.isEmpty()){
-            return l1;
+        private boolean isNewShape(Document doc){
+            return !settings.get(Setting.SKIP_SEEN_SHAPES) || this.isNewShape(ShapeFingerprint.of(doc,listSample));
         }
 
-        return this.newList(this.mergeDocuments(l1.get(0),l2.get(0)));
+        private boolean isNewShape(RawBsonDocument doc){
+            return !settings.get(Setting.SKIP_SEEN_SHAPES) || this.isNewShape(ShapeFingerprint.of(doc,listSample));
+        }
+
+        /**
+         * Check whether a shape still has to be merged into the schema and remember it if so.
+         * Only used when {@link Setting#SKIP_SEEN_SHAPES} is on.
+         * @param fingerprint - the {@link ShapeFingerprint} of the document.
+         * @return true if the document should be merged, false if a document with the same shape already was.
+         */
+        private boolean isNewShape(long fingerprint){
+            if(seenShapes.contains(fingerprint)){
+                return false;
+            }
+            if(seenShapes.size()<MAX_SEEN_SHAPES){
+                seenShapes.add(fingerprint);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Describe the shape of a document as a schema node. None of the document's values are kept.
+     * @param doc - the document to describe.
+     * @return the document node.
+     */
+    SchemaNode describeDocument(Document doc){
+        return this.describeDocument(null,doc);
     }
 
+    /**
+     * Describe the shape of a document found at a path.
+     * The open documents and lists are kept on a work stack rather than in JVM frames, each is handed to the one
+     * below it once complete, so the depth of a document costs heap instead of stack.
+     * @param prefix - the path of the document, null for the root.
+     * @param doc - the document to describe.
+     * @return the document node.
+     */
+    private SchemaNode describeDocument(String prefix, Document doc){
+        Deque<Frame> frames = new ArrayDeque<>();
+        frames.push(Frame.document(null,prefix,doc.entrySet().iterator()));
+        while(true){
+            Frame frame = frames.peek();
+            SchemaNode child;
+            if(!frame.values.hasNext()){
+                frames.pop();
+                if(frame.list){
+                    frame.node.setElements(frame.elements);
+                }
+                if(frames.isEmpty()){
+                    return frame.node;
+                }
+                child = frame.node;
+                frame = frames.peek();
+            } else if(frame.list){
+                Object element = frame.values.next();
+                if(frame.type.isDocumentList() && element instanceof Document){
+                    frames.push(Frame.document(frame,null,((Document) element).entrySet().iterator()));
+                    continue;
+                } else if(!frame.type.isNestedList() || !(element instanceof List)){
+                    continue;// Only the documents of a list of documents and the lists of a list of lists are merged
+                }
+                child = this.describeList(frame,null,(List<?>) element,frames);
+            } else {
+                Map.Entry<?,?> field = (Map.Entry<?,?>) frame.values.next();
+                frame.field = (String) field.getKey();
+                child = this.describe(frame,frame.field,field.getValue(),frames);
+            }
+            if(child!=null){
+                this.add(frame,child);
+            }
+        }
+    }
 
     /**
-     * Evaluate the specified objects for known conflicts.
-     * @param o1 - the first object.
-     * @param o2 - the second object.
-     * @return a list containing the conflict or an empty list if no conflicts where found.
+     * Describe the shape of a single value as a schema node.
+     * @param parent - the document holding the value.
+     * @param key - the key corresponding to the value.
+     * @param o - the value to describe.
+     * @param frames - the work stack, documents and lists that have children to describe are pushed on it.
+     * @return the node for the value, null if it was pushed on the work stack.
      */
-    private List<Object> skipKnownConflicts(Object o1, Object o2){
-        List<Object> conflicts = new ArrayList<>();
-        if(o1 instanceof String && o1.equals(Validator.Conflict.MERGE_CONFLICT.name())) {
-            conflicts.add(o1);
-        } else if (o2 instanceof String && o2.equals(Validator.Conflict.MERGE_CONFLICT.name())){
-            conflicts.add(o2);
+    private SchemaNode describe(Frame parent, String key, Object o, Deque<Frame> frames){
+        if(o instanceof List){
+            return this.describeList(parent,key,(List<?>) o,frames);
+        }
+        Type type = Type.getType(o);
+        if(type.isDocument()){
+            frames.push(Frame.document(parent,key,((Document) o).entrySet().iterator()));
+            return null;
+        } else if(type.equals(Type.NULL)){
+            return SchemaNode.nullNode();
         }
-        return conflicts;
+        return SchemaNode.simple(o.getClass());
     }
 
     /**
-     * Merge a single key in a document.
-     * @param key - the key to merge.
-     * @param o1 - the first object to merge.
-     * @param o2 - the second object to merge.
-     * @return the merged object.
+     * Describe the shape of a list as a schema node with a single node for all of its elements.
+     * The list is classified once by a {@link ListSummary}, only its sampled elements are validated and described.
+     * When {@link Setting#TRUNCATE_LISTS} is on only the first non null element is described.
+     * @param parent - the document or list holding the list.
+     * @param key - the key of the list in a document, null for the element of a list.
+     * @param list - the list to describe.
+     * @param frames - the work stack, a list of documents or of lists is pushed on it to describe its elements.
+     * @return the node for the list, null if it was pushed on the work stack.
      */
-    private Object mergeKey(String key, Object o1, Object o2) {
-        if(o1==null && o2==null){
+    private SchemaNode describeList(Frame parent, String key, List<?> list, Deque<Frame> frames){
+        ListSummary summary = settings.get(Setting.TRUNCATE_LISTS)? ListSummary.first(list) : ListSummary.of(list,listSample);
+        Type type = Type.getListType(summary);
+        SchemaNode node = SchemaNode.list(type,list.getClass());
+        if(type.equals(Type.EMPTY_LIST)){
+            return node;
+        }
+
+        Frame frame = Frame.list(parent,key,node,type,summary.getSample().iterator());
+        if(!validator.isCongruent(summary) && this.mixedList(frame) && settings.get(Setting.MARK_CONFLICTS)){
+            return node.markConflict();
+        }
+
+        if(type.isDocumentList() || type.isNestedList()){
+            frames.push(frame);
             return null;
-        } else if(o1==null){
-            return o2;
-        } else if(o2==null){
-            return o1;
         }
+        Object first = summary.getFirst();// Simple List, every element has the same class
+        node.setElements(first==null? SchemaNode.nullNode() : SchemaNode.simple(first.getClass()));
+        return node;
+    }
 
-        if(o1.equals(o2)){
-            return o1;// If o1 == o2 there is no need to merge.
-            //TODO if you add other conflict types modify this line to use .valueOf or custom method
-        } else if(settings.get(Setting.MARK_CONFLICTS)) {
-            List<Object> conflicts = this.skipKnownConflicts(o1,o2);
-            if(!conflicts.isEmpty()){
-                return conflicts.get(0);// Found a conflict, return it without further processing.
+    /**
+     * Describe the shape of a raw BSON document as a schema node.
+     * Only field names and BSON types are read, values are skipped without being decoded.
+     * @param doc - the document to describe.
+     * @return the document node.
+     */
+    private SchemaNode describeDocument(RawBsonDocument doc){
+        BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(doc.getByteBuffer()));
+        try {
+            return this.describeDocument(null,reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Describe the shape of the document the reader is positioned on and read past it.
+     * Uses the same work stack as {@link #describeDocument(String, Document)}, the reader moves in and out of the
+     * documents and arrays as they are pushed and popped.
+     * @param prefix - the path of the document, null for the root.
+     * @param reader - the reader positioned on a document.
+     * @return the document node.
+     */
+    private SchemaNode describeDocument(String prefix, BsonReader reader){
+        Deque<Frame> frames = new ArrayDeque<>();
+        reader.readStartDocument();
+        frames.push(Frame.document(null,prefix,null));
+        while(true){
+            Frame frame = frames.peek();
+            SchemaNode child;
+            if(reader.readBsonType()==BsonType.END_OF_DOCUMENT){
+                frames.pop();
+                if(frame.list){
+                    reader.readEndArray();
+                    child = this.describeList(frame);
+                } else {
+                    reader.readEndDocument();
+                    child = frame.node;
+                }
+                if(frames.isEmpty()){
+                    return child;
+                }
+                frame = frames.peek();
+            } else if(frame.list){
+                this.describeElement(frame,reader,frames);
+                continue;
+            } else {
+                frame.field = reader.readName();
+                child = this.describe(frame,frame.field,reader,frames);
+            }
+            if(child!=null){
+                this.add(frame,child);
             }
         }
-        Type o1Type = null;
+    }
 
+    /**
+     * Describe the shape of the value the reader is positioned on and read past it.
+     * @param parent - the document holding the value.
+     * @param key - the key corresponding to the value.
+     * @param reader - the reader positioned on a value.
+     * @param frames - the work stack, documents and arrays are entered and pushed on it.
+     * @return the node for the value, null if it was pushed on the work stack.
+     */
+    private SchemaNode describe(Frame parent, String key, BsonReader reader, Deque<Frame> frames){
+        switch(reader.getCurrentBsonType()){
+            case DOCUMENT:
+                reader.readStartDocument();
+                frames.push(Frame.document(parent,key,null));
+                return null;
+            case ARRAY:
+                reader.readStartArray();
+                frames.push(Frame.list(parent,key));
+                return null;
+            case NULL:
+                reader.readNull();
+                return SchemaNode.nullNode();
+            default:
+                SchemaNode node = SchemaNode.simple(BsonTypes.getValueClass(reader));
+                reader.skipValue();
+                return node;
+        }
+    }
+
+    /**
+     * Inspect the element the reader is positioned on in an array and read past it.
+     * Follows the same rules as {@link #describeList(Frame, String, List, Deque)}: the list type comes from the first non
+     * null element and every inspected element must have the same class. Once the list sampling limit is reached the
+     * remaining elements are skipped, as soon as the first non null element has been found.
+     * @param frame - the array being described.
+     * @param reader - the reader positioned on an element.
+     * @param frames - the work stack, elements that are documents or arrays to describe are entered and pushed on it.
+     */
+    private void describeElement(Frame frame, BsonReader reader, Deque<Frame> frames){
+        BsonType bsonType = reader.getCurrentBsonType();
+        if(bsonType==BsonType.NULL && frame.type.equals(Type.EMPTY_LIST)){
+            frame.type = Type.NULL_LIST;
+        }
+        if(settings.get(Setting.TRUNCATE_LISTS) && (frame.described || bsonType==BsonType.NULL)){
+            reader.skipValue();// Only the first non null element is described
+            return;
+        }
+        boolean sampled = frame.inspectedElements++<listSample;
+        if(!sampled && (frame.described || bsonType==BsonType.NULL)){
+            reader.skipValue();// Past the sample, keep looking for the first non null element only
+            return;
+        }
+
+        Class<?> valueClass = BsonTypes.getValueClass(reader);
+        if(!frame.inspected){
+            frame.elementClass = valueClass;
+            frame.inspected = true;
+        } else if(sampled && !Objects.equals(frame.elementClass,valueClass)){
+            frame.congruent = false;
+        }
+
+        if(bsonType==BsonType.NULL){
+            reader.readNull();
+            return;
+        }
+        if(!frame.described){
+            frame.type = (bsonType==BsonType.DOCUMENT)? Type.DOCUMENT_LIST : (bsonType==BsonType.ARRAY)? Type.NESTED_LIST : Type.SIMPLE_LIST;
+            frame.described = true;
+        }
+
+        if(frame.type.isDocumentList() && bsonType==BsonType.DOCUMENT){
+            reader.readStartDocument();
+            frames.push(Frame.document(frame,null,null));
+        } else if(frame.type.isNestedList() && bsonType==BsonType.ARRAY){
+            reader.readStartArray();
+            frames.push(Frame.list(frame,null));
+        } else {
+            if(frame.elements==null){
+                frame.elements = SchemaNode.simple(valueClass);
+            }
+            reader.skipValue();
+        }
+    }
+
+    /**
+     * Describe the shape of an array once every element has been read.
+     * @param frame - the array.
+     * @return the node for the list.
+     */
+    private SchemaNode describeList(Frame frame){
+        Type type = frame.type;
+        SchemaNode node = SchemaNode.list(type,ArrayList.class);
+        if(type.equals(Type.EMPTY_LIST)){
+            return node;
+        }
+        if(!frame.congruent && this.mixedList(frame) && settings.get(Setting.MARK_CONFLICTS)){
+            return node.markConflict();
+        }
+
+        node.setElements(type.equals(Type.NULL_LIST)? SchemaNode.nullNode() : frame.elements);
+        return node;
+    }
+
+    /**
+     * Report a list whose sampled elements have mismatched classes to the validator.
+     * @param frame - the list.
+     * @return true if the validator accepts it as a conflict, which is then recorded.
+     */
+    private boolean mixedList(Frame frame){
+        String path = frame.path();
         try {
-            if(validator.fuzzyValidate(key, o1, o2)){
-                o1Type = Type.getFuzzyType(o1, o2);
-
-                if(o1Type.isDocument()){ // Nested Document
-                    return this.mergeDocuments((Document) o1,(Document) o2);// Recursion
-                } else if(o1Type.isDocumentList()){ // A list of documents
-                    return this.mergeDocumentLists((List<Document>) o1, (List<Document>) o2);
-                } else if(o1Type.isNestedList()){// List of lists
-                    return this.mergeNestedLists((List<List>) o1,(List<List>) o2);
-                } else if(o1Type.isSimpleList()){
-                    return this.truncateList((List) o1);// List of simple types
+            if(validator.fail(() -> "Miss-matched types for key "+path+": List has elements of mismatched types!")){
+                return false;
+            }
+        } catch(ValidationException validationException){
+            throw new RuntimeException("Unable to describe key: "+path, validationException);
+        }
+        this.metrics.conflict(path);
+        conflicts.recordMixedList(path,frame.type);
+        return true;
+    }
+
+    /**
+     * Hand a described child to the document or list below it on the work stack.
+     * A document puts the child at the key being described, a list merges it into the node of its elements:
+     * [{},{},{}] => {} and [ [], [], [] ] => [].
+     * @param frame - the document or list.
+     * @param child - the node of the child.
+     */
+    private void add(Frame frame, SchemaNode child){
+        if(!frame.list){
+            frame.node.put(frame.field,child);
+        } else if(frame.elements==null){
+            frame.elements = child;// The first element, there is nothing to merge it with yet
+        } else if(frame.type.isDocumentList()){
+            frame.elements = this.mergeDocuments(frame.path()+ELEMENTS,frame.elements,child);
+        } else {
+            frame.elements = this.mergeKey(null,frame.path()+ELEMENTS,frame.elements,child);
+        }
+    }
+
+    /**
+     * A document or list waiting on the work stack of a describe for its children.
+     * Decoded values iterate over the fields of a document or the sampled elements of a list, raw BSON values are
+     * read from the reader instead and arrays keep the state of {@link #describeElement} until they are read.
+     * A frame only knows its parent and key, its path is built when a conflict or a merge needs it so that deep
+     * documents don't hold a path string per level.
+     */
+    private static class Frame {
+        private final Frame parent;
+        /** The key of the value under its parent document, null for the elements of a list, the prefix at the root. */
+        private final String key;
+        private final boolean list;
+        /** The fields or sampled elements left to describe, null for raw BSON. */
+        private final Iterator<?> values;
+        /** The node of a document or a decoded list, raw arrays create theirs once read. */
+        private final SchemaNode node;
+        /** The key of the field being described in a document. */
+        private String field;
+        private Type type;
+        /** The node every element described so far has been merged into. */
+        private SchemaNode elements;
+        private Class<?> elementClass;
+        private boolean congruent = true;
+        private boolean inspected;
+        private boolean described;
+        private int inspectedElements;
+
+        private Frame(Frame parent, String key, boolean list, Iterator<?> values, SchemaNode node, Type type){
+            this.parent=parent;
+            this.key=key;
+            this.list=list;
+            this.values=values;
+            this.node=node;
+            this.type=type;
+        }
+
+        private static Frame document(Frame parent, String key, Iterator<?> fields){
+            return new Frame(parent,key,false,fields,SchemaNode.document(),null);
+        }
+
+        private static Frame list(Frame parent, String key, SchemaNode node, Type type, Iterator<?> elements){
+            return new Frame(parent,key,true,elements,node,type);
+        }
+
+        private static Frame list(Frame parent, String key){
+            return new Frame(parent,key,true,null,null,Type.EMPTY_LIST);
+        }
+
+        /**
+         * @return the dotted path of the document or list, such as a.items[].tags, null for the root document.
+         */
+        private String path(){
+            Deque<Frame> frames = new ArrayDeque<>();
+            for(Frame frame = this; frame!=null; frame = frame.parent){
+                frames.push(frame);
+            }
+            String prefix = frames.pop().key;
+            StringBuilder path = new StringBuilder(prefix==null? "" : prefix);
+            boolean empty = prefix==null;
+            for(Frame frame : frames){
+                if(frame.parent.list){
+                    path.append(ELEMENTS);
+                } else {
+                    path.append(empty? "" : ".").append(frame.key);
+                    empty = false;
                 }
-                // If it is a simple type no merging is necessary
-            } else if(settings.get(Setting.MARK_CONFLICTS)){
-                return Validator.Conflict.MERGE_CONFLICT.name();
             }
+            return empty? null : path.toString();
+        }
+    }
+
+    /**
+     * Given two document nodes combine them and return the result.
+     * The resulting node will contain a set of all the keys in both documents.
+     * @param d1 - the first document.
+     * @param d2 - the second document.
+     * @return - the combined document.
+     */
+    SchemaNode mergeDocuments(SchemaNode d1, SchemaNode d2){
+        return this.mergeDocuments(null,d1,d2);
+    }
+
+    /**
+     * Combine two document nodes found at a path, see {@link #mergeDocuments(SchemaNode, SchemaNode)}.
+     * @param prefix - the path of the documents, null for the root.
+     * @param d1 - the first document.
+     * @param d2 - the second document.
+     * @return - the combined document.
+     */
+    private SchemaNode mergeDocuments(String prefix, SchemaNode d1, SchemaNode d2){
+        if(d1==null && d2==null){
+            return null; // Both are null so their combination is null
+        } else if(d1==null){
+            return d2;  // One is null the other is not so their combination is the non null document
+        } else if(d2==null){
+            return d1;
+        }
+        // Neither Document is null
+
+        Deque<Merge> merges = new ArrayDeque<>();
+        d1 = this.mergeExistingKeys(prefix,d1,d2,merges);
+        d1 = this.addMissingKeys(d1,d2);
+        this.merge(merges);
+
+        return d1;
+    }
+
+    /** [{}] x2 => [{}] **/
+    SchemaNode mergeDocumentLists(SchemaNode l1, SchemaNode l2){
+        l1.setElements(this.mergeDocuments(l1.getElements(),l2.getElements()));
+        return l1;
+    }
+
+    /**
+     * A merge of two nodes waiting on the work stack of {@link #merge(Deque)}.
+     * The merged node replaces the field at key when the parent is a document, or the elements of a list parent.
+     * The path of the nodes is the prefix followed by the key, it is only built when the nodes conflict or have
+     * children. The elements of a list are merged under their whole path as the key, such as a.items[], with no prefix.
+     */
+    private static class Merge {
+        private final SchemaNode parent;
+        private final String prefix;
+        private final String key;
+        private final SchemaNode n1, n2;
+
+        private Merge(SchemaNode parent, String prefix, String key, SchemaNode n1, SchemaNode n2){
+            this.parent=parent;
+            this.prefix=prefix;
+            this.key=key;
+            this.n1=n1;
+            this.n2=n2;
+        }
+    }
+
+    /**
+     * Run the merges on the work stack until it is empty.
+     * Merging two documents or lists pushes the merges of their children instead of recursing, so the depth of the
+     * schema costs heap for the stack rather than JVM frames.
+     * @param merges - the work stack.
+     */
+    private void merge(Deque<Merge> merges){
+        while(!merges.isEmpty()){
+            Merge merge = merges.pop();
+            SchemaNode merged = this.mergeNodes(merge.prefix,merge.key,merge.n1,merge.n2,merges);
+            if(merge.parent.getType().isDocument()){
+                merge.parent.put(merge.key,merged);
+            } else {
+                merge.parent.setElements(merged);
+            }
+        }
+    }
+
+    /**
+     * Merge a single key in a document.
+     * @param key - the key to merge.
+     * @param n1 - the first node to merge.
+     * @param n2 - the second node to merge.
+     * @return the merged node.
+     */
+    SchemaNode mergeKey(String key, SchemaNode n1, SchemaNode n2) {
+        return this.mergeKey(null,key,n1,n2);
+    }
+
+    private SchemaNode mergeKey(String prefix, String key, SchemaNode n1, SchemaNode n2) {
+        Deque<Merge> merges = new ArrayDeque<>();
+        SchemaNode merged = this.mergeNodes(prefix,key,n1,n2,merges);
+        this.merge(merges);
+        return merged;
+    }
+
+    /**
+     * Merge two nodes of a key without merging their children, which are pushed on the work stack instead.
+     * Lists of lists are merged like lists of documents, their elements are merged under the path of the elements.
+     * @param prefix - the path of the parent, null for the root or for the elements of a list.
+     * @param key - the key to merge.
+     * @param n1 - the first node to merge.
+     * @param n2 - the second node to merge.
+     * @param merges - the work stack to push the merges of the children on.
+     * @return the merged node, the first node when children are pushed.
+     */
+    private SchemaNode mergeNodes(String prefix, String key, SchemaNode n1, SchemaNode n2, Deque<Merge> merges) {
+        if(n1==null){
+            return n2;
+        } else if(n2==null){
+            return n1;
+        } else if(n2.getType().equals(Type.NULL)){
+            return n1.getType().equals(Type.NULL)? n1 : n1.markNullable();// Keep the nulls for the JSON Schema types
+        } else if(n1.getType().equals(Type.NULL)){
+            return n2.markNullable();
+        }
+
+        if(n1==n2){
+            return n1;// The same node, there is nothing to merge.
+        } else if(n1.isConflict()){
+            return n1;// Found a conflict, return it without further processing.
+        } else if(n2.isConflict()){
+            return n2;
+        }
+
+        Type type;
+        try {
+            type = validator.getMergedType(key,n1,n2);// Validate and classify the pair in one step
         } catch(ValidationException validationException){
-            // TODO for some reason logging / system.out are magically disabled here...
             String errorMsg = "Unable to merge key, cannot combine key: " + key + " " +
-                    "\n" + o1.getClass() + ":" + o1 + "" +
-                    "\n" + o2.getClass() + ":" + o2;
+                    "\n" + n1.getType() + ":" + n1.getValueClass() +
+                    "\n" + n2.getType() + ":" + n2.getValueClass();
             throw new RuntimeException(errorMsg, validationException);
         }
 
-        return o1;
+        if(type==null){
+            String path = path(prefix,key);
+            this.metrics.conflict(path);
+            conflicts.record(path,n1,n2);
+            return settings.get(Setting.MARK_CONFLICTS)? n1.markConflict() : n1;
+        } else if(n1.getType().equals(Type.EMPTY_LIST)){
+            return n1.isNullable()? n2.markNullable() : n2;// An empty list adds nothing to the other list
+        } else if(n2.getType().equals(Type.EMPTY_LIST)){
+            return n2.isNullable()? n1.markNullable() : n1;
+        }
+        if(n2.isNullable()){
+            n1.markNullable();
+        }
+
+        if(type.isDocument()){ // Nested Document
+            this.mergeExistingKeys(path(prefix,key),n1,n2,merges);
+            return this.addMissingKeys(n1,n2);
+        } else if(type.isDocumentList() || type.isNestedList()){ // A list of documents or of lists
+            merges.push(new Merge(n1,null,path(prefix,key)+ELEMENTS,n1.getElements(),n2.getElements()));
+            return n1;
+        }
+        // If it is a simple type or a list of simple types no merging is necessary
+
+        return n1;
     }
 
     /**
-     * For the given documents merge the top level keys that exist in both.
+     * For the given document nodes push the merges of the top level keys that exist in both.
+     * @param prefix - the path of the documents, null for the root.
      * @param d1 - the first document.
      * @param d2 - the second document.
-     * @return the resulting merged document.
+     * @param merges - the work stack, each merge puts its result back in d1 with its key.
+     * @return the first document.
      */
-    private Document mergeExistingKeys(Document d1, Document d2){
+    private SchemaNode mergeExistingKeys(String prefix, SchemaNode d1, SchemaNode d2, Deque<Merge> merges){
         if(d1==null || d2==null){
             throw new NullPointerException("Document is null.");
         }
 
-        for(String key: d2.keySet()){
-            if(d1.containsKey(key)) {
-                Object o1 = d1.get(key);
-                Object o2 = d2.get(key);
-                d1.put(key,this.mergeKey(key,o1,o2));// Put the results back in d1 with key
+        for(Map.Entry<String,SchemaNode> field : d2.getFields().entrySet()){
+            String key = field.getKey();
+            SchemaNode n1 = d1.get(key);
+            if(n1!=null) {
+                merges.push(new Merge(d1,prefix,key,n1,field.getValue()));
             }
         }
 
@@ -375,24 +1830,21 @@ public class Generator {
      * @param d2 - the second document.
      * @return - the first document with the second's keys added to it.
      */
-    private Document addMissingKeys(Document d1, Document d2) {
+    private SchemaNode addMissingKeys(SchemaNode d1, SchemaNode d2) {
         if(d1==null || d2==null){
             throw new NullPointerException("Document is null.");
         }
-        d2.keySet().iterator().forEachRemaining(key->d1.putIfAbsent(key,d2.get(key)));
+        d2.getFields().forEach(d1::putIfAbsent);
         return d1;
     }
 
     /**
-     * Convenience method to create an untyped ArrayList and add one element to it.
-     * Use instead of Arrays.asList which has a different class as ArrayList!
-     * @param o - the object to add to the list.
-     * @return the new ArrayList
+     * @param prefix - the path of the parent, null for the root.
+     * @param key - the key under the parent.
+     * @return the dotted path of the key.
      */
-    private ArrayList newList(Object o){
-        ArrayList list = new ArrayList();
-        list.add(o);
-        return list;
+    private static String path(String prefix, String key){
+        return prefix==null? key : prefix+"."+key;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,144 @@
+package lazy.dev.condensation;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Micrometer meters of a {@link Generator} for one collection, tagged with the collection name.
+ * Meters are looked up once per collection so the per document cost is a counter increment and, for documents that
+ * are merged, a timer sample. Without a registry the meters are registered in an empty composite registry, which
+ * makes them no-ops.
+ *
+ *   condensation.documents      - documents read, its rate is the documents read per second.
+ *   condensation.bytes          - bytes of raw BSON described. Only counted with {@link Generator.Setting#RAW_BSON},
+ *                                 the driver decodes other documents without exposing their size.
+ *   condensation.cursor.wait    - time spent waiting on the cursor for a batch.
+ *   condensation.merge          - time spent merging a document into the schema, with a percentile histogram.
+ *   condensation.shapes         - documents with a new shape, merged into the schema.
+ *   condensation.conflicts      - merge conflicts, tagged with the path. Past the first {@link #MAX_CONFLICT_PATHS}
+ *                                 paths conflicts are counted under the path {@link #OTHER_PATH}.
+ *   condensation.schema.size    - the number of nodes of each generated schema.
+ */
+final class GeneratorMetrics {
+
+    /** Waits shorter than this are served from the batch already fetched and are not recorded. */
+    static final long BATCH_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    /** Paths with their own conflict counter, the same bound as the paths a {@link ConflictCollector} tracks. */
+    static final int MAX_CONFLICT_PATHS = ConflictCollector.MAX_KEYS;
+    static final String OTHER_PATH = "other";
+
+    private static final MeterRegistry NOOP = new CompositeMeterRegistry();
+
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final Counter documents;
+    private final Counter bytes;
+    private final Counter shapes;
+    private final Timer cursorWait;
+    private final Timer merge;
+    private final DistributionSummary schemaSize;
+    private final Map<String,Counter> conflicts = new ConcurrentHashMap<>();
+    private final Counter otherConflicts;
+
+    /**
+     * @param registry - the registry to register the meters in, null to record nothing.
+     * @param collection - the name of the collection, the value of the collection tag.
+     */
+    GeneratorMetrics(MeterRegistry registry, String collection){
+        this.registry = registry==null? NOOP : registry;
+        this.tags = Tags.of("collection",collection==null? "none" : collection);
+        this.documents = Counter.builder("condensation.documents").tags(tags).description("Documents read").register(this.registry);
+        this.bytes = Counter.builder("condensation.bytes").tags(tags).baseUnit("bytes").description("Bytes of raw BSON described").register(this.registry);
+        this.shapes = Counter.builder("condensation.shapes").tags(tags).description("Documents with a new shape merged into the schema").register(this.registry);
+        this.cursorWait = Timer.builder("condensation.cursor.wait").tags(tags).description("Time spent waiting on the cursor for a batch").register(this.registry);
+        this.merge = Timer.builder("condensation.merge").tags(tags).publishPercentileHistogram().description("Time spent merging a document into the schema").register(this.registry);
+        this.schemaSize = DistributionSummary.builder("condensation.schema.size").tags(tags).description("Nodes in the generated schema").register(this.registry);
+        this.otherConflicts = this.conflictCounter(OTHER_PATH);
+    }
+
+    void document(){
+        documents.increment();
+    }
+
+    void bytes(long count){
+        bytes.increment(count);
+    }
+
+    /**
+     * Record a wait on the cursor, only waits long enough to be a batch fetch are recorded.
+     * @param nanos - the time waited.
+     */
+    void cursorWait(long nanos){
+        if(nanos>=BATCH_WAIT_NANOS){
+            cursorWait.record(nanos,TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Record a document merged into the schema.
+     * @param nanos - the time the merge took.
+     */
+    void merged(long nanos){
+        shapes.increment();
+        merge.record(nanos,TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Count a conflict. The counter of a path is registered on its first conflict and cached, once
+     * {@link #MAX_CONFLICT_PATHS} paths have a counter the conflicts of new paths are counted under {@link #OTHER_PATH}.
+     * @param path - the path of the conflicting values.
+     */
+    void conflict(String path){
+        Counter counter = conflicts.get(path);
+        if(counter==null){
+            if(conflicts.size()>=MAX_CONFLICT_PATHS){
+                otherConflicts.increment();
+                return;
+            }
+            counter = conflicts.computeIfAbsent(path,this::conflictCounter);
+        }
+        counter.increment();
+    }
+
+    private Counter conflictCounter(String path){
+        return Counter.builder("condensation.conflicts").tags(tags).tag("path",path).description("Merge conflicts").register(registry);
+    }
+
+    /**
+     * Record the size of a generated schema.
+     * @param schema - the schema, null if no documents were read.
+     */
+    void schema(SchemaNode schema){
+        schemaSize.record(schema==null? 0 : size(schema));
+    }
+
+    /** Count the nodes of a schema with a stack, deep schemas cost no JVM frames. */
+    private static long size(SchemaNode schema){
+        long size = 0;
+        Deque<SchemaNode> nodes = new ArrayDeque<>();
+        nodes.push(schema);
+        while(!nodes.isEmpty()){
+            SchemaNode node = nodes.pop();
+            size++;
+            for(SchemaNode field : node.getFields().values()){
+                if(field!=null){
+                    nodes.push(field);
+                }
+            }
+            if(node.getElements()!=null){
+                nodes.push(node.getElements());
+            }
+        }
+        return size;
+    }
+}
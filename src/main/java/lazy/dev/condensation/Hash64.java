@@ -0,0 +1,54 @@
+package lazy.dev.condensation;
+
+/**
+ * The 64 bit hashing shared by {@link ShapeFingerprint} and {@link SchemaIndex}: FNV-1a folds values and names into
+ * a 64 bit state and the fmix64 finalizer of MurmurHash3 spreads its bits.
+ *
+ * Names, such as keys and class names, are hashed character by character into the 64 bit state. Folding in
+ * {@link String#hashCode()} instead would make names such as "Aa" and "BB" collide every time, since they share
+ * their 32 bit hash: two shapes would share a fingerprint and a renamed key would go unreported by a diff.
+ */
+final class Hash64 {
+
+    static final long SEED = 0xcbf29ce484222325L;
+    static final long PRIME = 0x100000001b3L;
+
+    private Hash64(){}
+
+    /**
+     * Fold a value into the state, one FNV-1a step.
+     * @param h - the state.
+     * @param value - the value.
+     * @return the new state.
+     */
+    static long mix(long h, long value){
+        return (h ^ value) * PRIME;
+    }
+
+    /**
+     * FNV-1a over the characters of a name, followed by its length so that consecutive names stay apart.
+     * @param h - the state.
+     * @param name - the name.
+     * @return the new state.
+     */
+    static long mix(long h, String name){
+        for(int i=0; i<name.length(); i++){
+            h = mix(h,name.charAt(i));
+        }
+        return mix(h,name.length());
+    }
+
+    /**
+     * Spread the bits of a hash, fmix64 from MurmurHash3.
+     * @param h - the hash.
+     * @return the spread hash.
+     */
+    static long finish(long h){
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
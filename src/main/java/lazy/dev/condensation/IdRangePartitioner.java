@@ -0,0 +1,111 @@
+package lazy.dev.condensation;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a collection into contiguous _id ranges that can be scanned independently.
+ * The bounds are interpolated between the smallest and largest _id, both read through the _id index.
+ * This works when the _ids are all ObjectIds (split on their timestamp) or all numbers, for anything else the
+ * whole collection is returned as a single range.
+ */
+final class IdRangePartitioner {
+
+    private static Logger logger = LoggerFactory.getLogger(IdRangePartitioner.class);
+
+    private static final String ID = "_id";
+
+    private IdRangePartitioner(){}
+
+    /**
+     * Split a collection into _id ranges.
+     * The first and last ranges are open ended so documents inserted outside of the current bounds are still covered.
+     * @param collection - the collection to split.
+     * @param partitions - the number of ranges wanted.
+     * @param maxTimeMS - the time the server may spend looking up each bound, 0 for no limit.
+     * @return the filters matching each range, at most partitions of them.
+     */
+    static List<Bson> split(MongoCollection<Document> collection, int partitions, long maxTimeMS){
+        Object min = getBoundId(collection,Sorts.ascending(ID),maxTimeMS);
+        Object max = getBoundId(collection,Sorts.descending(ID),maxTimeMS);
+
+        List<Object> bounds = getBounds(min,max,partitions);
+        if(bounds.isEmpty()){
+            logger.info("Unable to split _ids between ["+min+"] and ["+max+"], scanning a single range.");
+            return Collections.singletonList(new Document());
+        }
+
+        List<Bson> ranges = new ArrayList<>();
+        ranges.add(Filters.lt(ID,bounds.get(0)));
+        for(int i=1; i<bounds.size(); i++){
+            ranges.add(Filters.and(Filters.gte(ID,bounds.get(i-1)),Filters.lt(ID,bounds.get(i))));
+        }
+        ranges.add(Filters.gte(ID,bounds.get(bounds.size()-1)));
+        return ranges;
+    }
+
+    private static Object getBoundId(MongoCollection<Document> collection, Bson sort, long maxTimeMS){
+        FindIterable<Document> find = collection.find().projection(Projections.include(ID)).sort(sort).limit(1);
+        if(maxTimeMS>0){
+            find.maxTime(maxTimeMS,TimeUnit.MILLISECONDS);
+        }
+        Document doc = find.first();
+        return doc==null? null : doc.get(ID);
+    }
+
+    /**
+     * Interpolate the inner bounds between two _ids.
+     * @return the increasing inner bounds, empty if the _ids can't be interpolated.
+     */
+    static List<Object> getBounds(Object min, Object max, int partitions){
+        List<Object> bounds = new ArrayList<>();
+        if(min instanceof ObjectId && max instanceof ObjectId){
+            long from = ((ObjectId) min).getTimestamp();
+            long to = ((ObjectId) max).getTimestamp();
+            long previous = from;
+            for(int i=1; i<partitions; i++){
+                long timestamp = from + (to-from)*i/partitions;
+                if(timestamp>previous){
+                    bounds.add(new ObjectId(new Date(timestamp*1000),0,(short) 0,0));
+                    previous = timestamp;
+                }
+            }
+        } else if(isIntegral(min) && isIntegral(max)){
+            long from = ((Number) min).longValue();
+            long to = ((Number) max).longValue();
+            long previous = from;
+            for(int i=1; i<partitions; i++){
+                long bound = from + (long) ((double) (to-from)*i/partitions);
+                if(bound>previous){
+                    bounds.add(bound);
+                    previous = bound;
+                }
+            }
+        } else if(min instanceof Number && max instanceof Number){
+            double from = ((Number) min).doubleValue();
+            double to = ((Number) max).doubleValue();
+            for(int i=1; i<partitions && from<to; i++){
+                bounds.add(from + (to-from)*i/partitions);
+            }
+        }
+        return bounds;
+    }
+
+    private static boolean isIntegral(Object o){
+        return o instanceof Integer || o instanceof Long;
+    }
+}
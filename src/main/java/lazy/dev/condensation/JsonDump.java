@@ -0,0 +1,302 @@
+package lazy.dev.condensation;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDbPointer;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonTimestamp;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads the documents of a mongoexport file, extended JSON with one document per line.
+ * A file is split into chunks that end on line boundaries, which are memory mapped and can be read in parallel.
+ *
+ * Documents are parsed with the Jackson streaming parser and transcoded to the BSON types of their values, but not
+ * the values themselves: every value is written as a fixed placeholder of its type, so the raw BSON handed out holds
+ * the structure the schema needs and nothing else. Extended JSON wrappers such as {"$oid": ...}, {"$date": ...} or
+ * {"$numberLong": ...} become the BSON type they stand for, plain JSON numbers are Int32, Int64 or Double like the
+ * shell reads them.
+ *
+ * Documents are handed out as {@link RawBsonDocument}s over a buffer that is reused for the next document, they must
+ * not be kept after the consumer returns.
+ */
+final class JsonDump {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final ObjectId OBJECT_ID = new ObjectId(new byte[12]);
+    private static final byte[] UUID_BYTES = new byte[16];
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private JsonDump(){}
+
+    /**
+     * Split a file into memory mapped chunks of about the given size, each ending after a new line or at the end of the file.
+     * @param channel - the channel of the file.
+     * @param chunkSize - the size after which a chunk ends with the line being read.
+     * @return the chunks, in file order.
+     * @throws IOException - when the file cannot be read or mapped.
+     */
+    static List<ByteBuffer> split(FileChannel channel, long chunkSize) throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        long size = channel.size();
+        long start = 0;
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        while(start<size){
+            long end = Math.min(size,start+chunkSize);
+            while(end<size){// Move the end past the next new line
+                probe.clear();
+                int read = channel.read(probe,end);
+                int newLine = -1;
+                for(int i=0; i<read && newLine<0; i++){
+                    if(probe.get(i)=='\n'){
+                        newLine = i;
+                    }
+                }
+                if(newLine>=0){
+                    end += newLine+1;
+                    break;
+                }
+                end += read;
+            }
+            if(end-start>Integer.MAX_VALUE){
+                throw new IOException("Line too long to map at offset "+start);
+            }
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY,start,end-start));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Read every document of a chunk.
+     * @param chunk - the chunk, from {@link #split(FileChannel, long)}.
+     * @param consumer - called with each document.
+     * @throws IOException - when the chunk is not extended JSON documents.
+     */
+    static void read(ByteBuffer chunk, Consumer<RawBsonDocument> consumer) throws IOException {
+        read(new ByteBufferInputStream(chunk.duplicate()),consumer);
+    }
+
+    /**
+     * Read every document of a stream, for files that cannot be mapped such as gzipped ones.
+     * @param in - the stream, positioned at the start of a line.
+     * @param consumer - called with each document.
+     * @throws IOException - when the stream cannot be read or is not extended JSON documents.
+     */
+    static void read(InputStream in, Consumer<RawBsonDocument> consumer) throws IOException {
+        BasicOutputBuffer buffer = new BasicOutputBuffer(1024);
+        try(JsonParser parser = JSON.createParser(in)){
+            JsonToken token;
+            while((token = parser.nextToken())!=null){// Root level values follow each other, one per line
+                if(token!=JsonToken.START_OBJECT){
+                    throw new JsonParseException(parser,"Expected a document, found: "+token);
+                }
+                buffer.truncateToPosition(0);
+                BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+                writeDocument(parser,writer);
+                writer.flush();
+                consumer.accept(new RawBsonDocument(buffer.getInternalBuffer(),0,buffer.getPosition()));
+            }
+        }
+    }
+
+    /** Write the document the parser is at the start of, the parser ends on its END_OBJECT. */
+    private static void writeDocument(JsonParser parser, BsonWriter writer) throws IOException {
+        writer.writeStartDocument();
+        while(parser.nextToken()==JsonToken.FIELD_NAME){
+            writer.writeName(parser.getCurrentName());
+            parser.nextToken();
+            writeValue(parser,writer);
+        }
+        writer.writeEndDocument();
+    }
+
+    private static void writeValue(JsonParser parser, BsonWriter writer) throws IOException {
+        switch(parser.getCurrentToken()){
+            case START_OBJECT:
+                writeObject(parser,writer);
+                break;
+            case START_ARRAY:
+                writer.writeStartArray();
+                while(parser.nextToken()!=JsonToken.END_ARRAY){
+                    writeValue(parser,writer);
+                }
+                writer.writeEndArray();
+                break;
+            case VALUE_STRING:
+                writer.writeString("");
+                break;
+            case VALUE_NUMBER_INT:
+                JsonParser.NumberType numberType = parser.getNumberType();
+                if(numberType==JsonParser.NumberType.INT){
+                    writer.writeInt32(0);
+                } else if(numberType==JsonParser.NumberType.LONG){
+                    writer.writeInt64(0);
+                } else {
+                    writer.writeDouble(0);// Too large for a long, the shell reads it as a double
+                }
+                break;
+            case VALUE_NUMBER_FLOAT:
+                writer.writeDouble(0);
+                break;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                writer.writeBoolean(false);
+                break;
+            case VALUE_NULL:
+                writer.writeNull();
+                break;
+            default:
+                throw new JsonParseException(parser,"Unexpected token: "+parser.getCurrentToken());
+        }
+    }
+
+    /**
+     * Write an object, either an extended JSON wrapper as the type it stands for or a document.
+     * The parser is at the START_OBJECT and ends on its END_OBJECT.
+     */
+    private static void writeObject(JsonParser parser, BsonWriter writer) throws IOException {
+        if(parser.nextToken()!=JsonToken.FIELD_NAME){
+            writer.writeStartDocument();// An empty document
+            writer.writeEndDocument();
+            return;
+        }
+        String name = parser.getCurrentName();
+        if(name.startsWith("$") && writeWrapper(name,parser,writer)){
+            return;
+        }
+
+        writer.writeStartDocument();
+        do {
+            writer.writeName(parser.getCurrentName());
+            parser.nextToken();
+            writeValue(parser,writer);
+        } while(parser.nextToken()==JsonToken.FIELD_NAME);
+        writer.writeEndDocument();
+    }
+
+    /**
+     * Write the type an extended JSON wrapper stands for, the parser is at the wrapper's first field name.
+     * @return true if the object was a wrapper and has been consumed, false if it is a document starting with a $ key.
+     */
+    private static boolean writeWrapper(String name, JsonParser parser, BsonWriter writer) throws IOException {
+        switch(name){
+            case "$oid": writer.writeObjectId(OBJECT_ID); break;
+            case "$date": writer.writeDateTime(0); break;
+            case "$numberInt": writer.writeInt32(0); break;
+            case "$numberLong": writer.writeInt64(0); break;
+            case "$numberDouble": writer.writeDouble(0); break;
+            case "$numberDecimal": writer.writeDecimal128(Decimal128.POSITIVE_ZERO); break;
+            case "$timestamp": writer.writeTimestamp(new BsonTimestamp()); break;
+            case "$regularExpression":
+            case "$regex": writer.writeRegularExpression(new BsonRegularExpression("")); break;
+            case "$symbol": writer.writeSymbol(""); break;
+            case "$minKey": writer.writeMinKey(); break;
+            case "$maxKey": writer.writeMaxKey(); break;
+            case "$undefined": writer.writeUndefined(); break;
+            case "$dbPointer": writer.writeDBPointer(new BsonDbPointer("",OBJECT_ID)); break;
+            case "$uuid": writer.writeBinaryData(new BsonBinary(BsonBinarySubType.UUID_STANDARD,UUID_BYTES)); break;
+            case "$binary":
+                writer.writeBinaryData(isUuid(parser)? new BsonBinary(BsonBinarySubType.UUID_STANDARD,UUID_BYTES) : new BsonBinary(NO_BYTES));
+                return true;// isUuid consumed the wrapper
+            case "$code":
+                boolean scope = false;
+                parser.nextToken();
+                while(parser.nextToken()==JsonToken.FIELD_NAME){
+                    scope |= parser.getCurrentName().equals("$scope");
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+                if(scope){
+                    writer.writeJavaScriptWithScope("");
+                    writer.writeStartDocument();
+                    writer.writeEndDocument();
+                } else {
+                    writer.writeJavaScript("");
+                }
+                return true;
+            default:
+                return false;
+        }
+        skipRest(parser);
+        return true;
+    }
+
+    /**
+     * Read a $binary wrapper, legacy {"$binary": base64, "$type": "04"} or canonical {"$binary": {"base64": ..., "subType": "04"}}.
+     * @return true if it holds a UUID.
+     */
+    private static boolean isUuid(JsonParser parser) throws IOException {
+        String subType = null;
+        if(parser.nextToken()==JsonToken.START_OBJECT){
+            while(parser.nextToken()==JsonToken.FIELD_NAME){
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if(field.equals("subType")){
+                    subType = parser.getText();
+                }
+                parser.skipChildren();
+            }
+        }
+        while(parser.nextToken()==JsonToken.FIELD_NAME){
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if(field.equals("$type")){
+                subType = parser.getText();
+            }
+            parser.skipChildren();
+        }
+        return subType!=null && (subType.equals("03") || subType.equals("04") || subType.equals("3") || subType.equals("4"));
+    }
+
+    /** Skip the value of the current field and any fields left in the object, ending on its END_OBJECT. */
+    private static void skipRest(JsonParser parser) throws IOException {
+        parser.nextToken();
+        parser.skipChildren();
+        while(parser.nextToken()==JsonToken.FIELD_NAME){
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    /** Streams a buffer to the parser, so a mapped chunk is read through the parser's own small buffer instead of being copied to the heap whole. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer){
+            this.buffer=buffer;
+        }
+
+        @Override
+        public int read(){
+            return buffer.hasRemaining()? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length){
+            if(!buffer.hasRemaining()){
+                return -1;
+            }
+            int read = Math.min(length,buffer.remaining());
+            buffer.get(bytes,offset,read);
+            return read;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package lazy.dev.condensation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Classifies a list in a single pass so {@link Type} and the {@link Validator} don't each walk it again.
+ * Long lists are sampled: the first half of the elements to inspect is taken from the head of the list and the
+ * other half at an even stride over the rest, so the cost of a summary doesn't grow with the length of the list.
+ * Lists without random access are only sampled from their head.
+ *
+ * The first non null element is always found, even past the sample, since it decides the type of the list.
+ * It is then added to the sample but not checked for congruence, like the elements past the sample.
+ */
+final class ListSummary {
+
+    /** Inspect every element of the list. */
+    static final int ALL = Integer.MAX_VALUE;
+
+    private final boolean empty;
+    private final Object first;
+    private final boolean congruent;
+    private final List<Object> sample;
+
+    private ListSummary(boolean empty, Object first, boolean congruent, List<Object> sample){
+        this.empty=empty;
+        this.first=first;
+        this.congruent=congruent;
+        this.sample=sample;
+    }
+
+    /**
+     * Summarize a list from a sample of its elements.
+     * @param list - the list to summarize.
+     * @param limit - the maximum number of elements to inspect, {@link #ALL} to inspect every element.
+     * @return the summary.
+     */
+    static ListSummary of(List<?> list, int limit){
+        if(list.isEmpty()){
+            return new ListSummary(true,null,true,Collections.emptyList());
+        }
+
+        int size = list.size();
+        List<Object> sample;
+        if(size<=limit){
+            sample = Collections.unmodifiableList(list);// The whole list is the sample, no need to copy it
+        } else if(!(list instanceof RandomAccess)){
+            sample = new ArrayList<>(limit+1);
+            Iterator<?> iterator = list.iterator();
+            while(sample.size()<limit){
+                sample.add(iterator.next());
+            }
+        } else {
+            sample = new ArrayList<>(limit+1);
+            for(int i=0; i<limit; i++){
+                sample.add(list.get(sampleIndex(i,size,limit)));
+            }
+        }
+
+        Class<?> elementClass = elementClass(sample.get(0));
+        boolean congruent = true;
+        for(Object element : sample){
+            if(elementClass!=elementClass(element)){
+                congruent = false;
+                break;
+            }
+        }
+
+        Object first = firstElement(sample);
+        if(first==null && sample.size()<size){
+            first = firstElement(list);// Leading nulls filled the sample, describe the first element past it too
+            if(first!=null){
+                sample.add(first);
+            }
+        }
+        return new ListSummary(false,first,congruent,sample);
+    }
+
+    /**
+     * Get the index of a sampled element in a random access list, the head of the list first and then an even
+     * stride over the rest. Lists without random access are sampled from their head, index i is then i.
+     * @param i - the position of the element in the sample, below the smaller of size and limit.
+     * @param size - the size of the list.
+     * @param limit - the maximum number of elements to inspect.
+     * @return the index of the element in the list.
+     */
+    static int sampleIndex(int i, int size, int limit){
+        int head = limit/2;
+        if(size<=limit || i<head){
+            return i;
+        }
+        double stride = (double) (size-head)/(limit-head);
+        return head+(int) ((i-head)*stride);
+    }
+
+    /**
+     * Iterate over the elements a summary of the list samples without copying them, followed by the first non null
+     * element past the sample when every sampled element is null.
+     * @param list - the list to sample.
+     * @param limit - the maximum number of elements to inspect, {@link #ALL} to inspect every element.
+     * @return the sampled elements, in list order.
+     */
+    static Iterator<Object> sample(List<?> list, int limit){
+        int size = list.size();
+        int sampled = Math.min(size,limit);
+        boolean stride = size>limit && list instanceof RandomAccess;
+        Iterator<?> iterator = list.iterator();
+        return new Iterator<Object>() {
+            private int i;
+            private boolean found;// A non null element was sampled
+            private boolean searched;// The first non null element was looked for past the sample
+
+            @Override
+            public boolean hasNext(){
+                return i<sampled || (size>limit && !found && !searched);
+            }
+
+            @Override
+            public Object next(){
+                if(!this.hasNext()){
+                    throw new NoSuchElementException();
+                }
+                Object element;
+                if(i<sampled){
+                    element = stride? list.get(sampleIndex(i,size,limit)) : iterator.next();
+                    i++;
+                } else {
+                    element = firstElement(list);
+                    searched = true;
+                }
+                found |= element!=null;
+                return element;
+            }
+        };
+    }
+
+    /**
+     * Summarize a list from its first non null element only, as if it were the only element.
+     * @param list - the list to summarize.
+     * @return the summary.
+     */
+    static ListSummary first(List<?> list){
+        if(list.isEmpty()){
+            return new ListSummary(true,null,true,Collections.emptyList());
+        }
+        Object first = firstElement(list);
+        return new ListSummary(false,first,true,Collections.singletonList(first));
+    }
+
+    /**
+     * @return true if the list has no elements.
+     */
+    boolean isEmpty(){
+        return empty;
+    }
+
+    /**
+     * @return the first non null element of the list, null if every element is null.
+     */
+    Object getFirst(){
+        return first;
+    }
+
+    /**
+     * @return true if every sampled element has the same class, nulls included.
+     */
+    boolean isCongruent(){
+        return congruent;
+    }
+
+    /**
+     * @return the sampled elements, in list order.
+     */
+    List<Object> getSample(){
+        return sample;
+    }
+
+    private static Object firstElement(List<?> list){
+        for(Object element : list){
+            if(element!=null){
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static Class<?> elementClass(Object element){
+        return element==null? null : element.getClass();
+    }
+}
@@ -0,0 +1,107 @@
+package lazy.dev.condensation;
+
+import com.mongodb.client.model.Aggregates;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds an aggregation pipeline that discovers key paths and their BSON types inside MongoDB.
+ * Every document is expanded with $objectToArray down to a configurable depth and the (path,type) pairs are grouped,
+ * so only one small row per distinct pair comes back over the wire:
+ *   { "_id" : { "p" : [ "address", "zip" ], "t" : "int" }, "count" : 1234 }
+ *
+ * A path is a list of keys. A null key stands for the elements of an array, so [ "tags", null ] holds the types of
+ * the elements of "tags". The empty path is the document itself, its count is the number of documents matched.
+ * Requires MongoDB 3.4.4 or later for $objectToArray.
+ */
+final class PathTypeAggregation {
+
+    /** Field of the grouped row holding the path and type. */
+    static final String ID = "_id";
+    /** Field of the grouped row's _id holding the path, a list of keys. */
+    static final String PATH = "p";
+    /** Field of the grouped row's _id holding the $type name. */
+    static final String TYPE = "t";
+    /** Field of the grouped row holding the number of values with this path and type. */
+    static final String COUNT = "count";
+
+    private static final String FRONTIER = "f";
+    private static final String ROWS = "r";
+
+    private PathTypeAggregation(){}
+
+    /**
+     * Build the pipeline.
+     * @param query - the query to match documents, null for all documents.
+     * @param depth - the number of levels of keys to expand, 1 for top level keys only.
+     * @return the pipeline stages.
+     */
+    static List<Bson> pipeline(Bson query, int depth){
+        if(depth<1){
+            throw new IllegalArgumentException("Depth must be at least 1, found: "+depth);
+        }
+        List<Bson> pipeline = new ArrayList<>();
+        if(query!=null){
+            pipeline.add(Aggregates.match(query));
+        }
+
+        // Start with the document itself as the only node to expand
+        Document root = new Document(PATH,new Document("$literal",Collections.emptyList())).append("v","$$ROOT");
+        pipeline.add(Aggregates.project(new Document(ID,0)
+                .append(FRONTIER,Collections.singletonList(root))
+                .append(ROWS,new Document("$literal",Collections.emptyList()))));
+
+        // Record the type of every node in the frontier, then replace the frontier with their children
+        for(int level=0; level<=depth; level++){
+            Document stage = new Document(ROWS,concat("$"+ROWS,typeRows()));
+            if(level<depth){
+                stage.append(FRONTIER,children());
+            }
+            pipeline.add(Aggregates.project(stage));
+        }
+
+        pipeline.add(Aggregates.unwind("$"+ROWS));
+        pipeline.add(new Document("$group",new Document(ID,new Document(PATH,"$"+ROWS+"."+PATH).append(TYPE,"$"+ROWS+"."+TYPE))
+                .append(COUNT,new Document("$sum",1))));
+        return pipeline;
+    }
+
+    /** { p, t } for every node of the frontier. */
+    private static Document typeRows(){
+        return map("$"+FRONTIER,"n",new Document(PATH,"$$n."+PATH).append(TYPE,new Document("$type","$$n.v")));
+    }
+
+    /** The children of every object and array node of the frontier. */
+    private static Document children(){
+        Document fields = map(new Document("$objectToArray","$$this.v"),"c",
+                new Document(PATH,concat("$$this."+PATH,Collections.singletonList("$$c.k"))).append("v","$$c.v"));
+        Document elements = map("$$this.v","c",
+                new Document(PATH,concat("$$this."+PATH,Collections.singletonList(null))).append("v","$$c"));
+
+        Document childrenOfThis = new Document("$switch",new Document("branches",Arrays.asList(
+                new Document("case",isType("object")).append("then",fields),
+                new Document("case",isType("array")).append("then",elements)
+        )).append("default",Collections.emptyList()));
+
+        return new Document("$reduce",new Document("input","$"+FRONTIER)
+                .append("initialValue",Collections.emptyList())
+                .append("in",concat("$$value",childrenOfThis)));
+    }
+
+    private static Document isType(String alias){
+        return new Document("$eq",Arrays.asList(new Document("$type","$$this.v"),alias));
+    }
+
+    private static Document map(Object input, String as, Object in){
+        return new Document("$map",new Document("input",input).append("as",as).append("in",in));
+    }
+
+    private static Document concat(Object a1, Object a2){
+        return new Document("$concatArrays",Arrays.asList(a1,a2));
+    }
+}
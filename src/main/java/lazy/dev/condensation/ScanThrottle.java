@@ -0,0 +1,123 @@
+package lazy.dev.condensation;
+
+import org.bson.RawBsonDocument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps a scan from competing with the other clients of the server. Shared by every cursor of a scan.
+ *
+ * Documents are rate limited to a number of documents and raw BSON bytes per second: each document moves the time
+ * the scan is allowed to reach forward by its cost, and the reading thread sleeps whenever it gets ahead of that time
+ * by more than {@link #MIN_SLEEP_NANOS}. Time that is not used is not saved up, so the scan never bursts above the rates.
+ *
+ * With adaptive backoff the time taken to fetch each batch is compared to a baseline, a moving average of the batches
+ * that were not slow. A batch slower than {@link #SLOW_RATIO} times the baseline means the server is busy, the scan
+ * pauses before the next fetch and doubles the pause for every slow batch that follows, up to {@link #MAX_PAUSE_NANOS}.
+ * The pause halves again with every batch that is not slow.
+ */
+final class ScanThrottle {
+
+    /** Sleeps shorter than this are not worth waking up for, they are carried over to the next document instead. */
+    static final long MIN_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    static final double SLOW_RATIO = 2;
+    static final long MAX_PAUSE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final double nanosPerDocument;
+    private final double nanosPerByte;
+    private final boolean adaptive;
+    private final LongSupplier clock;
+    private final LongConsumer sleeper;
+
+    /** The time the documents read so far are allowed to be read by. */
+    private long next = Long.MIN_VALUE;
+    private double baseline;
+    private long pause;
+    private long throttled;
+
+    /**
+     * @param documentsPerSecond - the documents read per second, 0 for no limit.
+     * @param bytesPerSecond - the raw BSON bytes read per second, 0 for no limit. Decoded documents are not counted.
+     * @param adaptive - whether to back off when batches get slow.
+     */
+    ScanThrottle(long documentsPerSecond, long bytesPerSecond, boolean adaptive){
+        this(documentsPerSecond,bytesPerSecond,adaptive,System::nanoTime,ScanThrottle::sleep);
+    }
+
+    ScanThrottle(long documentsPerSecond, long bytesPerSecond, boolean adaptive, LongSupplier clock, LongConsumer sleeper){
+        this.nanosPerDocument = documentsPerSecond>0? (double) TimeUnit.SECONDS.toNanos(1)/documentsPerSecond : 0;
+        this.nanosPerByte = bytesPerSecond>0? (double) TimeUnit.SECONDS.toNanos(1)/bytesPerSecond : 0;
+        this.adaptive=adaptive;
+        this.clock=clock;
+        this.sleeper=sleeper;
+    }
+
+    /**
+     * Account for a document read from a cursor, sleeping if the scan is ahead of its rates.
+     * @param doc - the document, a {@link RawBsonDocument} counts its bytes.
+     */
+    void acquire(Object doc){
+        if(nanosPerDocument==0 && nanosPerByte==0){
+            return;
+        }
+        long bytes = doc instanceof RawBsonDocument? ((RawBsonDocument) doc).getByteBuffer().remaining() : 0;
+        long wait;
+        synchronized(this){
+            long now = clock.getAsLong();
+            next = Math.max(next,now)+(long) Math.max(nanosPerDocument,bytes*nanosPerByte);
+            wait = next-now;
+            if(wait>=MIN_SLEEP_NANOS){
+                throttled += wait;
+            }
+        }
+        if(wait>=MIN_SLEEP_NANOS){
+            sleeper.accept(wait);
+        }
+    }
+
+    /**
+     * Account for a wait on a cursor, pausing if batches got slow. Only waits long enough to be a batch fetch count.
+     * @param nanos - the time waited.
+     */
+    void cursorWait(long nanos){
+        if(!adaptive || nanos<GeneratorMetrics.BATCH_WAIT_NANOS){
+            return;
+        }
+        long wait;
+        synchronized(this){
+            if(baseline==0){
+                baseline = nanos;
+            }
+            if(nanos>baseline*SLOW_RATIO){
+                pause = Math.min(MAX_PAUSE_NANOS,pause==0? nanos : pause*2);
+                baseline += (nanos-baseline)*0.01;// A lasting change in latency slowly becomes the new baseline
+            } else {
+                pause = pause/2<MIN_SLEEP_NANOS? 0 : pause/2;
+                baseline += (nanos-baseline)*0.1;
+            }
+            wait = pause;
+            throttled += wait;
+        }
+        if(wait>0){
+            sleeper.accept(wait);
+        }
+    }
+
+    /**
+     * @return the time spent sleeping so far, summed over every cursor.
+     */
+    long getThrottledNanos(){
+        return throttled;
+    }
+
+    private static void sleep(long nanos){
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while throttling a scan", e);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package lazy.dev.condensation;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A saved point in the condensation of a collection: the schema so far, the last _id merged into it and the
+ * resume token of the last change stream event applied to it.
+ * {@link Generator#resume(SchemaCheckpoint)} continues from the last _id and
+ * {@link Generator#follow(SchemaCheckpoint, java.util.function.Consumer)} from the resume token.
+ */
+public class SchemaCheckpoint {
+
+    private static final String SCHEMA = "schema", LAST_ID = "lastId", RESUME_TOKEN = "resumeToken", DOCUMENTS = "documents";
+    private static final String NAME = "name", NODE = "node", TYPE = "type", CLASS = "class", FIELDS = "fields", ELEMENTS = "elements", CONFLICT = "conflict",
+            NULLABLE = "nullable";
+
+    private SchemaNode schema;
+    private Object lastId;
+    private BsonDocument resumeToken;
+    private long documents;
+
+    /**
+     * Create an empty checkpoint, resuming from it condenses the whole collection.
+     */
+    public SchemaCheckpoint(){}
+
+    /**
+     * @return the schema so far, null if no documents were merged.
+     */
+    public Document getSchema(){
+        return schema==null? null : schema.toDocument();
+    }
+
+    /**
+     * @return the largest _id merged into the schema by {@link Generator#resume(SchemaCheckpoint)}, null if none.
+     */
+    public Object getLastId(){
+        return lastId;
+    }
+
+    /**
+     * @return the resume token of the last change stream event applied, null if none.
+     */
+    public BsonDocument getResumeToken(){
+        return resumeToken;
+    }
+
+    /**
+     * @return the number of documents and change events merged into the schema.
+     */
+    public long getDocuments(){
+        return documents;
+    }
+
+    protected SchemaNode getSchemaNode(){
+        return schema;
+    }
+
+    protected void setSchemaNode(SchemaNode schema){
+        this.schema=schema;
+    }
+
+    protected void setLastId(Object lastId){
+        this.lastId=lastId;
+    }
+
+    protected void setResumeToken(BsonDocument resumeToken){
+        this.resumeToken=resumeToken;
+    }
+
+    protected void addDocuments(long documents){
+        this.documents+=documents;
+    }
+
+    /**
+     * Save the checkpoint as extended JSON.
+     * @param path - the file to write, it is replaced if it exists.
+     * @throws IOException - when the file can't be written.
+     */
+    public void save(Path path) throws IOException {
+        String json = this.toDocument().toJson(JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build());
+        Files.write(path,json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Load a checkpoint written by {@link #save(Path)}.
+     * @param path - the file to read.
+     * @return the checkpoint.
+     * @throws IOException - when the file can't be read.
+     */
+    public static SchemaCheckpoint load(Path path) throws IOException {
+        return fromDocument(Document.parse(new String(Files.readAllBytes(path),StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the checkpoint as a document.
+     */
+    public Document toDocument(){
+        return new Document(SCHEMA,schema==null? null : encode(schema))
+                .append(LAST_ID,lastId)
+                .append(RESUME_TOKEN,resumeToken)
+                .append(DOCUMENTS,documents);
+    }
+
+    /**
+     * Read a checkpoint from the document written by {@link #toDocument()}.
+     * @param document - the checkpoint document.
+     * @return the checkpoint.
+     */
+    public static SchemaCheckpoint fromDocument(Document document){
+        SchemaCheckpoint checkpoint = new SchemaCheckpoint();
+        Document schema = (Document) document.get(SCHEMA);
+        checkpoint.schema = schema==null? null : decode(schema);
+        checkpoint.lastId = document.get(LAST_ID);
+        Object resumeToken = document.get(RESUME_TOKEN);
+        if(resumeToken instanceof Document){
+            checkpoint.resumeToken = BsonDocument.parse(((Document) resumeToken).toJson());
+        } else if(resumeToken instanceof BsonDocument){
+            checkpoint.resumeToken = (BsonDocument) resumeToken;
+        }
+        checkpoint.documents = ((Number) document.get(DOCUMENTS,0L)).longValue();
+        return checkpoint;
+    }
+
+    /**
+     * Encode a node with the full name of its class, unlike {@link SchemaNode#toDocument()} it can be decoded again.
+     * Fields are encoded as a list of named nodes, so keys such as $ref are never read back as extended JSON.
+     */
+    private static Document encode(SchemaNode node){
+        Document document = new Document(TYPE,node.getType().name())
+                .append(CLASS,node.getValueClass()==null? null : node.getValueClass().getName());
+        if(node.isConflict()){
+            document.append(CONFLICT,true);
+        }
+        if(node.isNullable()){
+            document.append(NULLABLE,true);
+        }
+        if(node.getType().isDocument()){
+            List<Document> fields = new ArrayList<>();
+            for(Map.Entry<String,SchemaNode> field : node.getFields().entrySet()){
+                fields.add(new Document(NAME,field.getKey()).append(NODE,encode(field.getValue())));
+            }
+            document.append(FIELDS,fields);
+        }
+        if(node.getElements()!=null){
+            document.append(ELEMENTS,encode(node.getElements()));
+        }
+        return document;
+    }
+
+    private static SchemaNode decode(Document document){
+        Type type = Type.valueOf(document.getString(TYPE));
+        SchemaNode node;
+        switch(type){
+            case NULL:
+                node = SchemaNode.nullNode();
+                break;
+            case SIMPLE:
+                node = SchemaNode.simple(getClass(document.getString(CLASS)));
+                break;
+            case DOCUMENT:
+                node = SchemaNode.document();
+                for(Object field : (List<?>) document.get(FIELDS)){
+                    node.put(((Document) field).getString(NAME),decode((Document) ((Document) field).get(NODE)));
+                }
+                break;
+            default:
+                node = SchemaNode.list(type,getClass(document.getString(CLASS)));
+                Document elements = (Document) document.get(ELEMENTS);
+                if(elements!=null){
+                    node.setElements(decode(elements));
+                }
+        }
+        if(document.getBoolean(NULLABLE,false)){
+            node.markNullable();
+        }
+        return document.getBoolean(CONFLICT,false)? node.markConflict() : node;
+    }
+
+    private static Class<?> getClass(String name){
+        try {
+            return Class.forName(name);
+        } catch(ClassNotFoundException e){
+            throw new IllegalArgumentException("Unknown class in checkpoint: "+name, e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * The differences between two document schemas, for example yesterday's and today's schema of a collection, to catch
+ * drift. Schemas are compared through their {@link SchemaIndex}: the diff starts at the roots and only walks into
+ * paths whose subtree hashes differ, looking up only the keys of the buckets whose hashes differ. Once both schemas
+ * are indexed its cost follows the number of differences rather than the size of the schemas. Keep the index of the last schema to only index the new one.
+ *
+ * A path added or removed is reported once, the paths under it are not. A path whose type changed is reported and,
+ * when both types are documents or lists, so are the differences under it.
+ */
+public class SchemaDiff {
+
+    public enum Change {
+        ADDED,
+        REMOVED,
+        /** The type changed, including conflicts that were resolved. */
+        TYPE_CHANGED,
+        /** The path is a {@link Validator.Conflict#MERGE_CONFLICT} and was not before, whether it existed or not. */
+        NEW_CONFLICT
+    }
+
+    private final List<Difference> differences;
+
+    private SchemaDiff(List<Difference> differences){
+        this.differences=differences;
+    }
+
+    /**
+     * Compare two document schemas. Both are indexed on every call, keep the index of a schema that is compared more
+     * than once and use {@link #between(SchemaIndex, SchemaIndex)}.
+     * @param before - the old schema, null for a schema without documents.
+     * @param after - the new schema, null for a schema without documents.
+     * @return the diff.
+     */
+    public static SchemaDiff between(Document before, Document after){
+        return between(SchemaIndex.of(before),SchemaIndex.of(after));
+    }
+
+    /**
+     * Compare two indexed document schemas.
+     * @param before - the index of the old schema.
+     * @param after - the index of the new schema.
+     * @return the diff.
+     */
+    public static SchemaDiff between(SchemaIndex before, SchemaIndex after){
+        List<Difference> differences = new ArrayList<>();
+        Deque<int[]> paths = new ArrayDeque<>();// (before, after) ids of the same path
+        paths.push(new int[]{SchemaIndex.ROOT,SchemaIndex.ROOT});
+        while(!paths.isEmpty()){
+            int[] ids = paths.pop();
+            int b = ids[0], a = ids[1];
+            if(before.getHash(b)==after.getHash(a)){
+                continue;
+            }
+            String oldType = before.getType(b);
+            String newType = after.getType(a);
+            if(!oldType.equals(newType)){
+                differences.add(new Difference(after.path(a),isConflict(newType)? Change.NEW_CONFLICT : Change.TYPE_CHANGED,oldType,newType));
+                if(!isContainer(oldType) || !isContainer(newType)){
+                    continue;// Nothing under a leaf to compare
+                }
+            }
+
+            for(int bucket=0; bucket<SchemaIndex.BUCKETS; bucket++){
+                if(before.getBucketHash(b,bucket)==after.getBucketHash(a,bucket)){
+                    continue;
+                }
+                for(int i=after.getBucketStart(a,bucket), end=after.getBucketStart(a,bucket+1); i<end; i++){
+                    int child = after.getBucketChild(a,i);
+                    int old = before.child(b,after.getKey(child));
+                    if(old>=0){
+                        paths.push(new int[]{old,child});
+                        continue;
+                    }
+                    String type = after.getType(child);
+                    differences.add(new Difference(after.path(child),isConflict(type)? Change.NEW_CONFLICT : Change.ADDED,null,type));
+                }
+                for(int i=before.getBucketStart(b,bucket), end=before.getBucketStart(b,bucket+1); i<end; i++){
+                    int child = before.getBucketChild(b,i);
+                    if(after.child(a,before.getKey(child))<0){
+                        differences.add(new Difference(before.path(child),Change.REMOVED,before.getType(child),null));
+                    }
+                }
+            }
+        }
+        differences.sort(Comparator.comparing(Difference::getPath));
+        return new SchemaDiff(differences);
+    }
+
+    /**
+     * @return every difference, ordered by path.
+     */
+    public List<Difference> getDifferences(){
+        return Collections.unmodifiableList(differences);
+    }
+
+    /**
+     * @param change - the kind of change.
+     * @return the differences of that kind, ordered by path.
+     */
+    public List<Difference> getDifferences(Change change){
+        return differences.stream().filter(difference -> difference.change==change).collect(Collectors.toList());
+    }
+
+    /**
+     * @return true if the schemas are the same.
+     */
+    public boolean isEmpty(){
+        return differences.isEmpty();
+    }
+
+    @Override
+    public String toString(){
+        return differences.stream().map(Difference::toString).collect(Collectors.joining("\n"));
+    }
+
+    private static boolean isConflict(String type){
+        return Validator.Conflict.MERGE_CONFLICT.name().equals(type);
+    }
+
+    private static boolean isContainer(String type){
+        return SchemaIndex.DOCUMENT.equals(type) || SchemaIndex.LIST.equals(type);
+    }
+
+    /**
+     * A path that differs between the two schemas.
+     */
+    public static class Difference {
+        private final String path;
+        private final Change change;
+        private final String before;
+        private final String after;
+
+        private Difference(String path, Change change, String before, String after){
+            this.path=path;
+            this.change=change;
+            this.before=before;
+            this.after=after;
+        }
+
+        public String getPath(){
+            return path;
+        }
+
+        public Change getChange(){
+            return change;
+        }
+
+        /**
+         * @return the type in the old schema, null if the path was added.
+         */
+        public String getBefore(){
+            return before;
+        }
+
+        /**
+         * @return the type in the new schema, null if the path was removed.
+         */
+        public String getAfter(){
+            return after;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(this==o){ return true; }
+            if(o==null || getClass()!=o.getClass()){ return false; }
+            Difference that = (Difference) o;
+            return path.equals(that.path) && change==that.change &&
+                    Objects.equals(before,that.before) && Objects.equals(after,that.after);
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(path,change,before,after);
+        }
+
+        @Override
+        public String toString(){
+            return change+" "+path+": "+before+" -> "+after;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes the paths of a document schema, as returned by {@link Generator#generateSchema()}, for {@link SchemaDiff}.
+ * Every path is interned once as an id, with its type and the hash of the subtree under it, in primitive arrays.
+ * Two subtrees with the same hash are taken to be the same, so a diff only walks into the parts of two schemas that
+ * differ. Keys and types are hashed with {@link Hash64}. The hash of a document does not depend on the order of its
+ * keys, which follows the order documents were merged in and changes from one scan to the next.
+ *
+ * The children of a path are also split in buckets by the hash of their key, each with the sum of its children's
+ * hashes, so a diff of two documents with many keys only looks up the keys of the buckets that differ.
+ *
+ * Paths are dotted keys, the elements of a list are the path of the list followed by [], like in {@link SchemaStatistics}.
+ * Types are the names the schema holds, for example String or MERGE_CONFLICT, with Document, List and null for the rest.
+ */
+public class SchemaIndex {
+
+    /** The key standing for the elements of a list. */
+    static final String ELEMENTS = "[]";
+    static final String DOCUMENT = "Document", LIST = "List", NULL = "null";
+    static final int ROOT = 0;
+    /** The number of buckets the children of a path are split in, the top bits of a key hash pick its bucket. */
+    static final int BUCKETS = 64;
+    private static final int BUCKET_SHIFT = 64-Integer.numberOfTrailingZeros(BUCKETS);
+
+    private int size;
+    private int[] parents = new int[16];
+    private String[] keys = new String[16];
+    private String[] types = new String[16];
+    private long[] hashes = new long[16];
+    /** The children of each path by key, null for paths without children. */
+    private List<Map<String,Integer>> children = new ArrayList<>();
+    /** The buckets of the children of each path, null for paths without children. */
+    private Buckets[] buckets;
+
+    private SchemaIndex(){}
+
+    /**
+     * Index a document schema. Nested documents and lists are walked with an explicit stack, so deep schemas
+     * cannot overflow the call stack.
+     * @param schema - the schema, null for a schema without documents, which has no paths.
+     * @return the index.
+     */
+    public static SchemaIndex of(Document schema){
+        if(schema==null){
+            schema = new Document();
+        }
+        SchemaIndex index = new SchemaIndex();
+        Deque<Object[]> values = new ArrayDeque<>();// (id, value) pairs to index
+        values.push(new Object[]{index.intern(-1,null,schema),schema});
+        while(!values.isEmpty()){
+            Object[] next = values.pop();
+            int id = (Integer) next[0];
+            Object value = next[1];
+            if(value instanceof Document){
+                for(Map.Entry<String,Object> field : ((Document) value).entrySet()){
+                    values.push(new Object[]{index.intern(id,field.getKey(),field.getValue()),field.getValue()});
+                }
+            } else if(value instanceof List && !((List<?>) value).isEmpty()){
+                Object elements = ((List<?>) value).get(0);
+                values.push(new Object[]{index.intern(id,ELEMENTS,elements),elements});
+            }
+        }
+        index.hash();
+        return index;
+    }
+
+    /**
+     * @return the number of paths indexed, the root included.
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @param path - the path.
+     * @return the type at the path, null if the path is not in the schema.
+     */
+    public String getType(String path){
+        if(path.isEmpty()){
+            return types[ROOT];
+        }
+        int id = ROOT;
+        for(String segment : path.split("\\.")){
+            int lists = 0;
+            while(segment.endsWith(ELEMENTS)){
+                segment = segment.substring(0,segment.length()-ELEMENTS.length());
+                lists++;
+            }
+            id = this.child(id,segment);
+            for(int i=0; i<lists && id>=0; i++){
+                id = this.child(id,ELEMENTS);
+            }
+            if(id<0){
+                return null;
+            }
+        }
+        return types[id];
+    }
+
+    String getType(int id){
+        return types[id];
+    }
+
+    long getHash(int id){
+        return hashes[id];
+    }
+
+    /**
+     * @return the sum of the hashes of the children in a bucket of a path, 0 for paths without children.
+     */
+    long getBucketHash(int id, int bucket){
+        return buckets[id]==null? 0 : buckets[id].hashes[bucket];
+    }
+
+    /**
+     * The children of a path are numbered by bucket, the children of a bucket go from its start to the next one's.
+     * The same keys fall in the same bucket in every index.
+     * @return the number of the first child of a bucket of a path.
+     */
+    int getBucketStart(int id, int bucket){
+        return buckets[id]==null? 0 : buckets[id].starts[bucket];
+    }
+
+    /**
+     * @return the id of the i-th child of a path, numbered by bucket.
+     */
+    int getBucketChild(int id, int i){
+        return buckets[id].ids[i];
+    }
+
+    String getKey(int id){
+        return keys[id];
+    }
+
+    /**
+     * @return the children of a path by key, empty for paths without children.
+     */
+    Map<String,Integer> getChildren(int id){
+        Map<String,Integer> keys = children.get(id);
+        return keys==null? Collections.<String,Integer>emptyMap() : keys;
+    }
+
+    /**
+     * @return the child of a path with the given key, -1 if there is none.
+     */
+    int child(int id, String key){
+        Integer child = this.getChildren(id).get(key);
+        return child==null? -1 : child;
+    }
+
+    /**
+     * Build the path of an id, only done for the paths a diff reports.
+     */
+    String path(int id){
+        if(id==ROOT){
+            return "";
+        }
+        StringBuilder path = new StringBuilder(keys[id]);
+        for(int child=id, parent=parents[id]; parent!=ROOT; child=parent, parent=parents[parent]){
+            if(!ELEMENTS.equals(keys[child])){
+                path.insert(0,'.');
+            }
+            path.insert(0,keys[parent]);
+        }
+        return path.toString();
+    }
+
+    private int intern(int parent, String key, Object value){
+        if(size==parents.length){
+            int capacity = size*2;
+            parents = Arrays.copyOf(parents,capacity);
+            keys = Arrays.copyOf(keys,capacity);
+            types = Arrays.copyOf(types,capacity);
+            hashes = Arrays.copyOf(hashes,capacity);
+        }
+        int id = size++;
+        parents[id] = parent;
+        keys[id] = key;
+        types[id] = value==null? NULL : value instanceof Document? DOCUMENT : value instanceof List? LIST : value.toString();
+        children.add(null);
+        if(parent>=0){
+            if(children.get(parent)==null){
+                children.set(parent,new HashMap<>());
+            }
+            children.get(parent).put(key,id);
+        }
+        return id;
+    }
+
+    /**
+     * Hash every subtree bottom up. Children are always interned after their parent, so walking the ids backwards
+     * finishes every child before its parent. The hashes of the children are summed, which ignores their order,
+     * into their parent and into their bucket.
+     */
+    private void hash(){
+        buckets = new Buckets[size];
+        int[] bucketOf = new int[size];
+        for(int id=0; id<size; id++){
+            hashes[id] = Hash64.finish(Hash64.mix(Hash64.SEED,types[id]));
+            if(id>ROOT){
+                bucketOf[id] = (int) (Hash64.finish(Hash64.mix(Hash64.SEED,keys[id]))>>>BUCKET_SHIFT);
+                if(buckets[parents[id]]==null){
+                    buckets[parents[id]] = new Buckets(children.get(parents[id]).size());
+                }
+                buckets[parents[id]].starts[bucketOf[id]+1]++;
+            }
+        }
+        for(Buckets children : buckets){
+            if(children!=null){
+                for(int bucket=0; bucket<BUCKETS; bucket++){
+                    children.starts[bucket+1] += children.starts[bucket];
+                }
+                children.filled = Arrays.copyOf(children.starts,BUCKETS);
+            }
+        }
+        for(int id=size-1; id>ROOT; id--){
+            long entry = Hash64.finish(Hash64.mix(hashes[id],keys[id]));
+            Buckets children = buckets[parents[id]];
+            hashes[parents[id]] += entry;
+            children.hashes[bucketOf[id]] += entry;
+            children.ids[children.filled[bucketOf[id]]++] = id;
+        }
+        for(Buckets children : buckets){
+            if(children!=null){
+                children.filled = null;
+            }
+        }
+    }
+
+    /**
+     * The children of a path ordered by bucket, with where each bucket starts.
+     */
+    private static class Buckets {
+        final long[] hashes = new long[BUCKETS];
+        final int[] starts = new int[BUCKETS+1];
+        final int[] ids;
+        /** Where the next child of each bucket goes, while hashing. */
+        int[] filled;
+
+        Buckets(int children){
+            this.ids = new int[children];
+        }
+    }
+}
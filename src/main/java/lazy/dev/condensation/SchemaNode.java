@@ -0,0 +1,364 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A node in the schema tree built by the {@link Generator}.
+ * A node describes the values found at one path by their {@link Type} and class, it never holds the values themselves.
+ *   DOCUMENT nodes keep a child node per field.
+ *   List nodes keep a single child node describing all of their elements.
+ *   Other nodes are leaves.
+ */
+public class SchemaNode {
+
+    private Type type;
+    private Class<?> valueClass;
+    private Map<String,SchemaNode> fields;
+    private SchemaNode elements;
+    private boolean conflict;
+    private boolean nullable;
+
+    private SchemaNode(Type type, Class<?> valueClass){
+        this.type=type;
+        this.valueClass=valueClass;
+        if(type.isDocument()){
+            this.fields = new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * Create a node for a null value.
+     * @return the new node.
+     */
+    protected static SchemaNode nullNode(){
+        return new SchemaNode(Type.NULL,null);
+    }
+
+    /**
+     * Create a leaf node for a simple value.
+     * @param valueClass - the class of the value.
+     * @return the new node.
+     */
+    protected static SchemaNode simple(Class<?> valueClass){
+        return new SchemaNode(Type.SIMPLE,valueClass);
+    }
+
+    /**
+     * Create a node, without any fields, for a document.
+     * @return the new node.
+     */
+    protected static SchemaNode document(){
+        return new SchemaNode(Type.DOCUMENT,Document.class);
+    }
+
+    /**
+     * Create a node, without elements, for a list.
+     * @param type - the list type.
+     * @param listClass - the class of the list.
+     * @return the new node.
+     */
+    protected static SchemaNode list(Type type, Class<?> listClass){
+        if(!type.isList()){
+            throw new IllegalArgumentException("Not a list type: "+type);
+        }
+        return new SchemaNode(type,listClass);
+    }
+
+    /**
+     * @return the type of the values at this node.
+     */
+    public Type getType(){
+        return type;
+    }
+
+    /**
+     * @return the class of the values at this node, null for {@link Type#NULL}.
+     */
+    public Class<?> getValueClass(){
+        return valueClass;
+    }
+
+    /**
+     * @return the fields of a document node, an empty map for any other node.
+     */
+    public Map<String,SchemaNode> getFields(){
+        return fields==null? Collections.emptyMap() : Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * @return the node describing the elements of a list node, null for empty lists and non list nodes.
+     */
+    public SchemaNode getElements(){
+        return elements;
+    }
+
+    /**
+     * @return true if the values at this node could not be merged.
+     */
+    public boolean isConflict(){
+        return conflict;
+    }
+
+    /**
+     * @return true if null values were merged into this node, which describes the values that were not null.
+     */
+    public boolean isNullable(){
+        return nullable;
+    }
+
+    /**
+     * Get a field of a document node.
+     * @param key - the field name.
+     * @return the field's node or null if the field does not exist.
+     */
+    protected SchemaNode get(String key){
+        return fields==null? null : fields.get(key);
+    }
+
+    /**
+     * Set a field of a document node.
+     * @param key - the field name.
+     * @param node - the field's node.
+     */
+    protected void put(String key, SchemaNode node){
+        fields.put(key,node);
+    }
+
+    /**
+     * Set a field of a document node if the field does not exist yet.
+     * @param key - the field name.
+     * @param node - the field's node.
+     */
+    protected void putIfAbsent(String key, SchemaNode node){
+        fields.putIfAbsent(key,node);
+    }
+
+    /**
+     * Set the node describing the elements of a list node.
+     * @param elements - the elements node.
+     */
+    protected void setElements(SchemaNode elements){
+        this.elements=elements;
+    }
+
+    /**
+     * Mark this node as also holding null values.
+     * @return this node.
+     */
+    protected SchemaNode markNullable(){
+        this.nullable=true;
+        return this;
+    }
+
+    /**
+     * Mark this node as a conflict, dropping any children since they no longer describe anything.
+     * @return this node.
+     */
+    protected SchemaNode markConflict(){
+        this.conflict=true;
+        this.fields=type.isDocument()? new LinkedHashMap<>() : null;
+        this.elements=null;
+        return this;
+    }
+
+    /**
+     * Check whether this node already describes everything the other node describes,
+     * in which case merging the other node into this one would change nothing.
+     * @param other - the node to check.
+     * @return true if this node covers the other node.
+     */
+    protected boolean covers(SchemaNode other){
+        Deque<SchemaNode[]> pairs = new ArrayDeque<>();// Walked with a stack, deep schemas cost no JVM frames
+        pairs.push(new SchemaNode[]{this,other});
+        while(!pairs.isEmpty()){
+            SchemaNode[] pair = pairs.pop();
+            SchemaNode ours = pair[0];
+            SchemaNode theirs = pair[1];
+            if(theirs==null || ours.conflict){
+                continue;
+            }
+            if(theirs.type==Type.NULL || theirs.nullable){
+                if(!ours.nullable && ours.type!=Type.NULL){
+                    return false;// Merging would mark our node nullable
+                }
+                if(theirs.type==Type.NULL){
+                    continue;
+                }
+            }
+            if(theirs.conflict || ours.type==Type.NULL){
+                return false;
+            }
+            if(theirs.type==Type.EMPTY_LIST){
+                if(!ours.type.isList()){
+                    return false;
+                }
+                continue;
+            }
+            if(ours.type!=theirs.type || !Objects.equals(ours.valueClass,theirs.valueClass)){
+                return false;
+            }
+            if(ours.type.isDocument()){
+                for(Map.Entry<String,SchemaNode> field : theirs.fields.entrySet()){
+                    SchemaNode child = ours.fields.get(field.getKey());
+                    if(child==null){
+                        return false;
+                    }
+                    pairs.push(new SchemaNode[]{child,field.getValue()});
+                }
+            } else if(ours.type.isList()){
+                if(ours.elements==null){
+                    if(theirs.elements!=null){
+                        return false;
+                    }
+                } else {
+                    pairs.push(new SchemaNode[]{ours.elements,theirs.elements});
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Render a document node as a {@link Document}.
+     * Leaves are rendered as the simple name of their class, lists as a list with a single element.
+     * @return the rendered document.
+     */
+    public Document toDocument(){
+        if(!type.isDocument() || conflict){
+            throw new IllegalStateException("Only document nodes can be rendered as a Document, found: "+type);
+        }
+        return (Document) this.render();
+    }
+
+    /**
+     * Render this node as the value it takes in a rendered {@link Document}.
+     * Documents and lists are rendered empty and filled from a stack, deep schemas cost no JVM frames.
+     * @return the rendered value.
+     */
+    private Object render(){
+        Deque<Object[]> renders = new ArrayDeque<>();// Each node with children and the value it is rendered into
+        Object rendered = render(this,renders);
+        while(!renders.isEmpty()){
+            Object[] render = renders.pop();
+            SchemaNode node = (SchemaNode) render[0];
+            if(node.type.isDocument()){
+                Document document = (Document) render[1];
+                for(Map.Entry<String,SchemaNode> field : node.fields.entrySet()){
+                    document.put(field.getKey(),render(field.getValue(),renders));
+                }
+            } else {
+                @SuppressWarnings("unchecked") List<Object> list = (List<Object>) render[1];
+                list.add(node.elements==null? null : render(node.elements,renders));
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * Render a node without its children, a document or list with children is pushed to be filled in.
+     * @param node - the node to render.
+     * @param renders - the stack of values to fill in.
+     * @return the rendered value.
+     */
+    private static Object render(SchemaNode node, Deque<Object[]> renders){
+        if(node.conflict){
+            return Validator.Conflict.MERGE_CONFLICT.name();
+        }
+        switch(node.type){
+            case NULL:
+                return null;
+            case SIMPLE:
+                return node.valueClass.getSimpleName();
+            case DOCUMENT:
+                Document document = new Document();
+                renders.push(new Object[]{node,document});
+                return document;
+            case EMPTY_LIST:
+                return new ArrayList<>();
+            default:
+                List<Object> list = new ArrayList<>(1);
+                renders.push(new Object[]{node,list});
+                return list;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this==o){ return true; }
+        if(o==null || getClass()!=o.getClass()){ return false; }
+        Deque<SchemaNode[]> pairs = new ArrayDeque<>();// Compared with a stack, deep schemas cost no JVM frames
+        pairs.push(new SchemaNode[]{this,(SchemaNode) o});
+        while(!pairs.isEmpty()){
+            SchemaNode[] pair = pairs.pop();
+            SchemaNode ours = pair[0];
+            SchemaNode theirs = pair[1];
+            if(ours==theirs){
+                continue;
+            }
+            if(ours==null || theirs==null || ours.type!=theirs.type || ours.conflict!=theirs.conflict || ours.nullable!=theirs.nullable
+                    || !Objects.equals(ours.valueClass,theirs.valueClass)
+                    || (ours.fields==null)!=(theirs.fields==null) || (ours.elements==null)!=(theirs.elements==null)){
+                return false;
+            }
+            if(ours.fields!=null){
+                if(ours.fields.size()!=theirs.fields.size()){
+                    return false;
+                }
+                for(Map.Entry<String,SchemaNode> field : ours.fields.entrySet()){
+                    SchemaNode child = theirs.fields.get(field.getKey());
+                    if(child==null && !theirs.fields.containsKey(field.getKey())){
+                        return false;
+                    }
+                    pairs.push(new SchemaNode[]{field.getValue(),child});
+                }
+            }
+            if(ours.elements!=null){
+                pairs.push(new SchemaNode[]{ours.elements,theirs.elements});
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sum a hash of every node and of its position in the tree, so the order of the fields doesn't matter,
+     * like it doesn't for {@link #equals(Object)}.
+     */
+    @Override
+    public int hashCode(){
+        int hash = 0;
+        Deque<Object[]> nodes = new ArrayDeque<>();// Each node and the hash of its position
+        nodes.push(new Object[]{this,0});
+        while(!nodes.isEmpty()){
+            Object[] entry = nodes.pop();
+            SchemaNode node = (SchemaNode) entry[0];
+            int position = (Integer) entry[1];
+            if(node==null){
+                continue;
+            }
+            hash += Integer.rotateLeft(position,7) ^ Objects.hash(node.type,node.valueClass,node.conflict,node.nullable);
+            if(node.fields!=null){
+                for(Map.Entry<String,SchemaNode> field : node.fields.entrySet()){
+                    nodes.push(new Object[]{field.getValue(),31*position+field.getKey().hashCode()});
+                }
+            }
+            if(node.elements!=null){
+                nodes.push(new Object[]{node.elements,31*position+1});
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString(){
+        return String.valueOf(type.isDocument() && !conflict? this.toDocument().toJson() : this.render());
+    }
+}
@@ -0,0 +1,58 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+
+/**
+ * The result of {@link Generator#sampleSchema()}: a schema built from a random sample of a collection.
+ */
+public class SchemaSample {
+
+    /** The confidence level of {@link #getConfidence()}. */
+    public static final double CONFIDENCE_LEVEL = 0.95;
+
+    private final Document schema;
+    private final long documentsRead;
+    private final boolean converged;
+    private final long unchanged;
+
+    protected SchemaSample(Document schema, long documentsRead, boolean converged, long unchanged){
+        this.schema=schema;
+        this.documentsRead=documentsRead;
+        this.converged=converged;
+        this.unchanged=unchanged;
+    }
+
+    /**
+     * @return the document schema, null if no documents were sampled.
+     */
+    public Document getSchema(){
+        return schema;
+    }
+
+    /**
+     * @return the number of documents read.
+     */
+    public long getDocumentsRead(){
+        return documentsRead;
+    }
+
+    /**
+     * @return true if sampling stopped because the schema stopped changing, false if it ran out of documents.
+     */
+    public boolean isConverged(){
+        return converged;
+    }
+
+    /**
+     * The fraction of the collection's documents that, with {@link #CONFIDENCE_LEVEL} confidence, add nothing to the
+     * schema. Estimated from the last run of consecutive documents that added nothing, with the rule of three: after
+     * n such documents the rate of documents adding something is below 1-(1-0.95)^(1/n), roughly 3/n.
+     * @return the estimated fraction, between 0 and 1.
+     */
+    public double getConfidence(){
+        if(unchanged==0){
+            return 0;
+        }
+        return Math.pow(1-CONFIDENCE_LEVEL,1.0/unchanged);
+    }
+}
@@ -0,0 +1,386 @@
+package lazy.dev.condensation;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.io.ByteBufferBsonInput;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of {@link Generator#generateStatistics()}: the schema of a collection and statistics of every path in it,
+ * collected in the same scan. For each path it counts the values found, the values of each BSON type, nulls included,
+ * and the shortest and longest lists.
+ *
+ * Paths are dotted keys, the elements of a list are the path of the list followed by [], for example "items[].name".
+ * Each path is interned once as an id and counted in primitive arrays indexed by that id, so collecting statistics
+ * only costs a walk of each document and no boxing.
+ */
+public class SchemaStatistics {
+
+    /** The key standing for the elements of a list. */
+    private static final String ELEMENTS = "[]";
+    private static final String COUNT = "count", NULLS = "nulls", TYPES = "types", MIN_LENGTH = "minLength", MAX_LENGTH = "maxLength";
+    private static final int ROOT = 0;
+    private static final BsonType[] BSON_TYPES = BsonType.values();
+
+    private Document schema;
+    private int size;
+    private int[] parents = new int[16];
+    private String[] keys = new String[16];
+    private List<Map<String,Integer>> children = new ArrayList<>();
+    private long[] counts = new long[16];
+    private long[] types = new long[16*BSON_TYPES.length];
+    private int[] minLengths = new int[16];
+    private int[] maxLengths = new int[16];
+    /** The id of each rendered path, built on the first lookup and dropped whenever a path is interned. */
+    private Map<String,Integer> pathIds;
+
+    protected SchemaStatistics(){
+        this.intern(-1,null);// The root, counts documents
+    }
+
+    /**
+     * @return the document schema, null if no documents were read.
+     */
+    public Document getSchema(){
+        return schema;
+    }
+
+    protected void setSchema(Document schema){
+        this.schema=schema;
+    }
+
+    /**
+     * @return the number of documents read.
+     */
+    public long getDocuments(){
+        return counts[ROOT];
+    }
+
+    /**
+     * @return every path found, in the order they were first found.
+     */
+    public List<String> getPaths(){
+        return new ArrayList<>(this.pathIds().keySet());
+    }
+
+    /**
+     * @param path - the path.
+     * @return the number of values found at the path, nulls included, 0 if the path was never found.
+     */
+    public long getCount(String path){
+        int id = this.find(path);
+        return id<0? 0 : counts[id];
+    }
+
+    /**
+     * @param path - the path.
+     * @return the number of null values found at the path.
+     */
+    public long getNulls(String path){
+        int id = this.find(path);
+        return id<0? 0 : types[id*BSON_TYPES.length+BsonType.NULL.ordinal()];
+    }
+
+    /**
+     * @param path - the path.
+     * @return the number of values of each BSON type found at the path, types without values are left out.
+     */
+    public Map<BsonType,Long> getTypes(String path){
+        Map<BsonType,Long> histogram = new EnumMap<>(BsonType.class);
+        int id = this.find(path);
+        for(int t=0; id>=0 && t<BSON_TYPES.length; t++){
+            long count = types[id*BSON_TYPES.length+t];
+            if(count>0){
+                histogram.put(BSON_TYPES[t],count);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @param path - the path.
+     * @return the length of the shortest list found at the path, -1 if no list was found.
+     */
+    public int getMinLength(String path){
+        int id = this.find(path);
+        return id<0 || maxLengths[id]<0? -1 : minLengths[id];
+    }
+
+    /**
+     * @param path - the path.
+     * @return the length of the longest list found at the path, -1 if no list was found.
+     */
+    public int getMaxLength(String path){
+        int id = this.find(path);
+        return id<0? -1 : maxLengths[id];
+    }
+
+    /**
+     * Render the statistics as a document, with a field per path:
+     *   { "tags" : { "count" : 10, "nulls" : 1, "types" : { "array" : 9, "null" : 1 }, "minLength" : 0, "maxLength" : 4 } }
+     * BSON types are named like the $type aggregation operator names them.
+     * @return the rendered statistics.
+     */
+    public Document toDocument(){
+        Document document = new Document();
+        String[] paths = this.paths();
+        for(int id=1; id<size; id++){
+            Document typeCounts = new Document();
+            for(int t=0; t<BSON_TYPES.length; t++){
+                long count = types[id*BSON_TYPES.length+t];
+                if(count>0){
+                    typeCounts.put(BsonTypes.getAlias(BSON_TYPES[t]),count);
+                }
+            }
+            Document statistics = new Document(COUNT,counts[id])
+                    .append(NULLS,types[id*BSON_TYPES.length+BsonType.NULL.ordinal()])
+                    .append(TYPES,typeCounts);
+            if(maxLengths[id]>=0){
+                statistics.append(MIN_LENGTH,minLengths[id]).append(MAX_LENGTH,maxLengths[id]);
+            }
+            document.put(paths[id],statistics);
+        }
+        return document;
+    }
+
+    /**
+     * Count a decoded document and every value in it.
+     * @param doc - the document.
+     */
+    protected void add(Document doc){
+        this.count(ROOT,BsonType.DOCUMENT);
+        this.addFields(ROOT,doc);
+    }
+
+    /**
+     * Count a raw BSON document and every value in it, without decoding the values.
+     * @param doc - the document.
+     */
+    protected void add(RawBsonDocument doc){
+        BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(doc.getByteBuffer()));
+        try {
+            this.count(ROOT,BsonType.DOCUMENT);
+            this.addFields(ROOT,reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Count values of a single path and type, for example a row of a {@link PathTypeAggregation}.
+     * List lengths are not known this way.
+     * @param path - the keys of the path, null keys stand for the elements of a list. The empty path counts documents.
+     * @param bsonType - the type of the values.
+     * @param count - the number of values.
+     */
+    protected void add(List<String> path, BsonType bsonType, long count){
+        int id = ROOT;
+        for(String key : path){
+            id = this.child(id,key==null? ELEMENTS : key);
+        }
+        counts[id]+=count;
+        types[id*BSON_TYPES.length+bsonType.ordinal()]+=count;
+    }
+
+    /**
+     * Add the statistics of another collector to this one.
+     * @param other - the statistics to add.
+     */
+    protected void combine(SchemaStatistics other){
+        int[] ids = new int[other.size];// Parents are always interned before their children
+        for(int id=0; id<other.size; id++){
+            ids[id] = id==ROOT? ROOT : this.child(ids[other.parents[id]],other.keys[id]);
+            int to = ids[id];
+            counts[to]+=other.counts[id];
+            for(int t=0; t<BSON_TYPES.length; t++){
+                types[to*BSON_TYPES.length+t]+=other.types[id*BSON_TYPES.length+t];
+            }
+            minLengths[to] = Math.min(minLengths[to],other.minLengths[id]);
+            maxLengths[to] = Math.max(maxLengths[to],other.maxLengths[id]);
+        }
+    }
+
+    /**
+     * Count the fields of a document, with the open documents and lists on a stack so deep documents cost no JVM
+     * frames. Each value is taken from the document or list on top, paths are still interned in the order found.
+     */
+    private void addFields(int id, Document doc){
+        Deque<Frame> frames = new ArrayDeque<>();
+        frames.push(new Frame(id,-1,doc.entrySet().iterator()));
+        while(!frames.isEmpty()){
+            Frame frame = frames.peek();
+            if(!frame.values.hasNext()){
+                frames.pop();
+                continue;
+            }
+            Object next = frame.values.next();
+            if(frame.list<0){
+                Map.Entry<?,?> field = (Map.Entry<?,?>) next;
+                this.addValue(this.child(frame.id,(String) field.getKey()),field.getValue(),frames);
+            } else {
+                this.addValue(frame.id,next,frames);
+            }
+        }
+    }
+
+    private void addValue(int id, Object value, Deque<Frame> frames){
+        if(value==null){
+            this.count(id,BsonType.NULL);
+            return;
+        }
+        BsonType bsonType = BsonTypes.getBsonType(value.getClass());
+        this.count(id,bsonType);
+        if(bsonType==BsonType.DOCUMENT){
+            frames.push(new Frame(id,-1,((Document) value).entrySet().iterator()));
+        } else if(bsonType==BsonType.ARRAY){
+            List<?> list = (List<?>) value;
+            this.length(id,list.size());
+            frames.push(new Frame(this.child(id,ELEMENTS),id,list.iterator()));
+        }
+    }
+
+    /** Count the fields of the document the reader is positioned on, with the same stack as {@link #addFields(int, Document)}. */
+    private void addFields(int id, BsonReader reader){
+        Deque<Frame> frames = new ArrayDeque<>();
+        reader.readStartDocument();
+        frames.push(new Frame(id,-1,null));
+        while(!frames.isEmpty()){
+            Frame frame = frames.peek();
+            if(reader.readBsonType()==BsonType.END_OF_DOCUMENT){
+                frames.pop();
+                if(frame.list<0){
+                    reader.readEndDocument();
+                } else {
+                    reader.readEndArray();
+                    this.length(frame.list,frame.length);
+                }
+                continue;
+            }
+            int child;
+            if(frame.list<0){
+                child = this.child(frame.id,reader.readName());
+            } else {
+                child = frame.id;
+                frame.length++;
+            }
+
+            BsonType bsonType = reader.getCurrentBsonType();
+            this.count(child,bsonType);
+            if(bsonType==BsonType.DOCUMENT){
+                reader.readStartDocument();
+                frames.push(new Frame(child,-1,null));
+            } else if(bsonType==BsonType.ARRAY){
+                reader.readStartArray();
+                frames.push(new Frame(this.child(child,ELEMENTS),child,null));
+            } else {
+                reader.skipValue();
+            }
+        }
+    }
+
+    /** A document or list on the stack of a walk, with the id its values are counted under. */
+    private static final class Frame {
+        /** The id of the document, or of the elements of the list. */
+        private final int id;
+        /** The id of the list, -1 for a document. */
+        private final int list;
+        /** The fields or elements left to count, null for raw BSON. */
+        private final Iterator<?> values;
+        /** The elements of a raw array read so far. */
+        private int length;
+
+        private Frame(int id, int list, Iterator<?> values){
+            this.id=id;
+            this.list=list;
+            this.values=values;
+        }
+    }
+
+    private void count(int id, BsonType bsonType){
+        counts[id]++;
+        if(bsonType!=null){// A class the driver has no BSON type for
+            types[id*BSON_TYPES.length+bsonType.ordinal()]++;
+        }
+    }
+
+    private void length(int id, int length){
+        minLengths[id] = Math.min(minLengths[id],length);
+        maxLengths[id] = Math.max(maxLengths[id],length);
+    }
+
+    /** Get the id of a child path, interning it the first time it is found. */
+    private int child(int parent, String key){
+        Map<String,Integer> keyIds = children.get(parent);
+        Integer id = keyIds.get(key);
+        if(id==null){
+            id = this.intern(parent,key);
+            keyIds.put(key,id);
+        }
+        return id;
+    }
+
+    private int intern(int parent, String key){
+        if(size==counts.length){
+            int capacity = size*2;
+            parents = Arrays.copyOf(parents,capacity);
+            keys = Arrays.copyOf(keys,capacity);
+            counts = Arrays.copyOf(counts,capacity);
+            types = Arrays.copyOf(types,capacity*BSON_TYPES.length);
+            minLengths = Arrays.copyOf(minLengths,capacity);
+            maxLengths = Arrays.copyOf(maxLengths,capacity);
+        }
+        int id = size++;
+        parents[id] = parent;
+        keys[id] = key;
+        minLengths[id] = Integer.MAX_VALUE;
+        maxLengths[id] = -1;
+        children.add(new HashMap<>());
+        pathIds = null;
+        return id;
+    }
+
+    /** Render every path, each from the path of its parent since parents are always interned first. */
+    private String[] paths(){
+        String[] paths = new String[size];
+        for(int id=1; id<size; id++){
+            String parent = paths[parents[id]];
+            if(parents[id]==ROOT){
+                paths[id] = keys[id];
+            } else {
+                paths[id] = ELEMENTS.equals(keys[id])? parent+ELEMENTS : parent+"."+keys[id];
+            }
+        }
+        return paths;
+    }
+
+    /** The id of each path, in the order they were first found. */
+    private Map<String,Integer> pathIds(){
+        if(pathIds==null){
+            String[] paths = this.paths();
+            pathIds = new LinkedHashMap<>(size*2);
+            for(int id=1; id<size; id++){
+                pathIds.putIfAbsent(paths[id],id);
+            }
+        }
+        return pathIds;
+    }
+
+    /** Find the id of a path, -1 if it was never found. */
+    private int find(String path){
+        Integer id = this.pathIds().get(path);
+        return id==null? -1 : id;
+    }
+}
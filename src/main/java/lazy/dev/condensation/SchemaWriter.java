@@ -0,0 +1,277 @@
+package lazy.dev.condensation;
+
+import org.bson.BsonType;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes schema trees as JSON straight to a {@link Writer}, node by node, without rendering them as a {@link org.bson.Document}
+ * or building the text in memory first.
+ *   CONDENSED          - the app's own format, the same JSON as {@link SchemaNode#toDocument()}.
+ *   JSON_SCHEMA        - a draft-04 JSON Schema with a JSON type for each path.
+ *   MONGO_JSON_SCHEMA  - a MongoDB $jsonSchema, usable as a collection validator, with the BSON type of each path.
+ * Conflicts are written as MERGE_CONFLICT in the condensed format and as a schema without a type, matching anything, in the others.
+ * Nodes that also held nulls get the types ["null", T] in the JSON Schema formats, so a validator accepts every document scanned.
+ */
+public class SchemaWriter {
+
+    private static final String DRAFT_04 = "http://json-schema.org/draft-04/schema#";
+
+    public enum Format { CONDENSED, JSON_SCHEMA, MONGO_JSON_SCHEMA }
+
+    /** The writes on the work stack that are not a node or a name. */
+    private enum Token { END_DOCUMENT, END_ARRAY, NULL }
+
+    private final Format format;
+    private boolean indent;
+
+    /**
+     * @param format - the format to write schemas in.
+     */
+    public SchemaWriter(Format format){
+        this.format=format;
+    }
+
+    /**
+     * Indent the JSON written, one key per line.
+     * @param indent - true to indent.
+     * @return the writer.
+     */
+    public SchemaWriter withIndent(boolean indent){
+        this.indent=indent;
+        return this;
+    }
+
+    /**
+     * Write a schema.
+     * @param schema - the document node of the schema, null is written as an empty schema.
+     * @param writer - the writer to write to, flushed but not closed.
+     */
+    public void write(SchemaNode schema, Writer writer){
+        JsonWriter json = this.jsonWriter(writer);
+        this.writeRoot(json,schema);
+        json.flush();
+    }
+
+    /**
+     * Write a schema as UTF-8.
+     * @param schema - the document node of the schema, null is written as an empty schema.
+     * @param out - the stream to write to, flushed but not closed.
+     */
+    public void write(SchemaNode schema, OutputStream out){
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out,StandardCharsets.UTF_8));
+        this.write(schema,writer);
+        this.flush(writer);
+    }
+
+    /**
+     * Write the schemas of several collections as one JSON document with a key per collection.
+     * @param schemas - the document node of each collection's schema by name.
+     * @param writer - the writer to write to, flushed but not closed.
+     */
+    public void write(Map<String,SchemaNode> schemas, Writer writer){
+        JsonWriter json = this.jsonWriter(writer);
+        json.writeStartDocument();
+        for(Map.Entry<String,SchemaNode> schema : schemas.entrySet()){
+            json.writeName(schema.getKey());
+            this.writeRoot(json,schema.getValue());
+        }
+        json.writeEndDocument();
+        json.flush();
+    }
+
+    /**
+     * Write the schemas of several collections as UTF-8, see {@link #write(Map, Writer)}.
+     * @param schemas - the document node of each collection's schema by name.
+     * @param out - the stream to write to, flushed but not closed.
+     */
+    public void write(Map<String,SchemaNode> schemas, OutputStream out){
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out,StandardCharsets.UTF_8));
+        this.write(schemas,writer);
+        this.flush(writer);
+    }
+
+    private JsonWriter jsonWriter(Writer writer){
+        return new JsonWriter(writer,JsonWriterSettings.builder().indent(indent).build());
+    }
+
+    private void flush(Writer writer){
+        try {
+            writer.flush();
+        } catch(IOException e){
+            throw new UncheckedIOException("Unable to write schema", e);
+        }
+    }
+
+    private void writeRoot(JsonWriter json, SchemaNode schema){
+        if(schema!=null && (!schema.getType().isDocument() || schema.isConflict())){
+            throw new IllegalArgumentException("Only document nodes can be written as a schema, found: "+schema.getType());
+        }
+        Deque<Object> writes = new ArrayDeque<>();
+        switch(format){
+            case CONDENSED:
+                writes.push(schema==null? SchemaNode.document() : schema);
+                this.write(json,writes);
+                break;
+            case JSON_SCHEMA:
+                json.writeStartDocument();
+                json.writeString("$schema",DRAFT_04);
+                this.writeProperties(json,schema,"type","object",writes);
+                this.write(json,writes);
+                json.writeEndDocument();
+                break;
+            default:
+                json.writeStartDocument();
+                json.writeName("$jsonSchema");
+                json.writeStartDocument();
+                this.writeProperties(json,schema,"bsonType","object",writes);
+                this.write(json,writes);
+                json.writeEndDocument();
+                json.writeEndDocument();
+        }
+    }
+
+    /**
+     * Run the writes on the work stack until it is empty: the nodes to write, the name before each field's node and
+     * the ends of the documents and arrays they open. Writing a node pushes what follows its start instead of
+     * recursing, so deep schemas cost heap for the stack rather than JVM frames.
+     * @param json - the writer.
+     * @param writes - the work stack.
+     */
+    private void write(JsonWriter json, Deque<Object> writes){
+        while(!writes.isEmpty()){
+            Object write = writes.pop();
+            if(write instanceof String){
+                json.writeName((String) write);
+            } else if(write==Token.END_DOCUMENT){
+                json.writeEndDocument();
+            } else if(write==Token.END_ARRAY){
+                json.writeEndArray();
+            } else if(write==Token.NULL){
+                json.writeNull();
+            } else if(format==Format.CONDENSED){
+                this.writeCondensed(json,(SchemaNode) write,writes);
+            } else {
+                this.writeSchema(json,(SchemaNode) write,writes);
+            }
+        }
+    }
+
+    /** The value {@link SchemaNode#toDocument()} renders for the node, its children are pushed on the work stack. */
+    private void writeCondensed(JsonWriter json, SchemaNode node, Deque<Object> writes){
+        if(node.isConflict()){
+            json.writeString(Validator.Conflict.MERGE_CONFLICT.name());
+            return;
+        }
+        switch(node.getType()){
+            case NULL:
+                json.writeNull();
+                break;
+            case SIMPLE:
+                json.writeString(node.getValueClass().getSimpleName());
+                break;
+            case DOCUMENT:
+                json.writeStartDocument();
+                writes.push(Token.END_DOCUMENT);
+                this.pushFields(node,writes);
+                break;
+            case EMPTY_LIST:
+                json.writeStartArray();
+                json.writeEndArray();
+                break;
+            default:
+                json.writeStartArray();
+                writes.push(Token.END_ARRAY);
+                writes.push(node.getElements()==null? Token.NULL : node.getElements());
+        }
+    }
+
+    /** A JSON Schema or $jsonSchema for the node, its children are pushed on the work stack. */
+    private void writeSchema(JsonWriter json, SchemaNode node, Deque<Object> writes){
+        json.writeStartDocument();
+        writes.push(Token.END_DOCUMENT);
+        if(!node.isConflict()){
+            String typeKey = format==Format.JSON_SCHEMA? "type" : "bsonType";
+            BsonType bsonType = node.getType()==Type.NULL? BsonType.NULL : BsonTypes.getBsonType(node.getValueClass());
+            if(node.getType().isDocument()){
+                this.writeProperties(json,node,typeKey,this.typeName(BsonType.DOCUMENT),writes);
+            } else if(node.getType().isList()){
+                this.writeType(json,typeKey,this.typeName(BsonType.ARRAY),node.isNullable());
+                if(node.getElements()!=null){
+                    writes.push(node.getElements());
+                    writes.push("items");
+                }
+            } else if(bsonType!=null && this.typeName(bsonType)!=null){
+                this.writeType(json,typeKey,this.typeName(bsonType),node.isNullable());
+                if(format==Format.JSON_SCHEMA && bsonType==BsonType.DATE_TIME){
+                    json.writeString("format","date-time");
+                }
+            }
+        }
+    }
+
+    /** The type and properties of a document node, without the enclosing braces, its fields are pushed on the work stack. */
+    private void writeProperties(JsonWriter json, SchemaNode document, String typeKey, String type, Deque<Object> writes){
+        this.writeType(json,typeKey,type,document!=null && document.isNullable());
+        json.writeName("properties");
+        json.writeStartDocument();
+        writes.push(Token.END_DOCUMENT);
+        if(document!=null){
+            this.pushFields(document,writes);
+        }
+    }
+
+    /** The type of a node, or the types null and the type of the node when it also held nulls. */
+    private void writeType(JsonWriter json, String typeKey, String type, boolean nullable){
+        if(!nullable){
+            json.writeString(typeKey,type);
+            return;
+        }
+        json.writeStartArray(typeKey);
+        json.writeString(this.typeName(BsonType.NULL));
+        json.writeString(type);
+        json.writeEndArray();
+    }
+
+    /** Push the name and node of each field of a document, the last one first so they are written in order. */
+    private void pushFields(SchemaNode document, Deque<Object> writes){
+        List<Map.Entry<String,SchemaNode>> fields = new ArrayList<>(document.getFields().entrySet());
+        for(int i=fields.size()-1; i>=0; i--){
+            writes.push(fields.get(i).getValue());
+            writes.push(fields.get(i).getKey());
+        }
+    }
+
+    /**
+     * The name of a BSON type in the output format.
+     * @return the $type alias for $jsonSchema, the closest JSON type for JSON Schema or null if there is none.
+     */
+    private String typeName(BsonType bsonType){
+        if(format==Format.MONGO_JSON_SCHEMA){
+            return BsonTypes.getAlias(bsonType);
+        }
+        switch(bsonType){
+            case DOUBLE: case DECIMAL128: return "number";
+            case INT32: case INT64: return "integer";
+            case STRING: case OBJECT_ID: case SYMBOL: case JAVASCRIPT: case DATE_TIME: return "string";
+            case BOOLEAN: return "boolean";
+            case DOCUMENT: return "object";
+            case ARRAY: return "array";
+            case NULL: return "null";
+            default: return null;// Binary, timestamps, regular expressions, ... have no JSON type
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package lazy.dev.condensation;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.io.ByteBufferBsonInput;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static lazy.dev.condensation.Hash64.SEED;
+import static lazy.dev.condensation.Hash64.finish;
+import static lazy.dev.condensation.Hash64.mix;
+
+/**
+ * Computes a cheap structural fingerprint of a document from its key paths, the {@link Type} of each value and
+ * the class of each simple value. Two documents with the same shape but different values get the same fingerprint,
+ * so once a shape has been merged into the schema any later document with that fingerprint can be skipped.
+ *
+ * Runs of list elements with the same fingerprint are collapsed, so [1,2,3] and [4,5] share a fingerprint.
+ * Long lists are fingerprinted from the same sample of elements that {@link ListSummary} describes, plus the first
+ * non null element past it when the sample holds none, so the cost doesn't grow with the length of the list.
+ * Fingerprints are 64 bit hashes: a collision would skip a document whose shape was never merged, which is
+ * unlikely enough to be ignored. Keys and class names are hashed with {@link Hash64}.
+ */
+final class ShapeFingerprint {
+
+    private static final long DOCUMENT_START = 1, DOCUMENT_END = 2, LIST_START = 3, LIST_END = 4, NULL = 5;
+
+    /** The hash of each class name, so the name is only walked once per class. */
+    private static final ClassValue<Long> CLASS_HASHES = new ClassValue<Long>() {
+        @Override
+        protected Long computeValue(Class<?> type){
+            return mix(SEED,type.getName());
+        }
+    };
+
+    private ShapeFingerprint(){}
+
+    /**
+     * Get the fingerprint of a document, from every element of its lists.
+     * @param doc - the document to fingerprint.
+     * @return the fingerprint.
+     */
+    static long of(Document doc){
+        return of(doc,ListSummary.ALL);
+    }
+
+    /**
+     * Get the fingerprint of a document.
+     * @param doc - the document to fingerprint.
+     * @param listSample - the maximum number of elements to hash in each list, {@link ListSummary#ALL} for every one.
+     * @return the fingerprint.
+     */
+    static long of(Document doc, int listSample){
+        return finish(ofDocument(SEED,doc,listSample));
+    }
+
+    /**
+     * Get the fingerprint of a raw BSON document without decoding it, from every element of its lists.
+     * Gives the same fingerprint as {@link #of(Document)} gives for the decoded document.
+     * @param doc - the document to fingerprint.
+     * @return the fingerprint.
+     */
+    static long of(RawBsonDocument doc){
+        return of(doc,ListSummary.ALL);
+    }
+
+    /**
+     * Get the fingerprint of a raw BSON document without decoding it.
+     * Lists are only sampled from their head, like the generator describes them, the rest of their elements are
+     * skipped. Gives the same fingerprint as {@link #of(Document,int)} for the decoded document when no list is
+     * longer than the sample.
+     * @param doc - the document to fingerprint.
+     * @param listSample - the maximum number of elements to hash in each list, {@link ListSummary#ALL} for every one.
+     * @return the fingerprint.
+     */
+    static long of(RawBsonDocument doc, int listSample){
+        BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(doc.getByteBuffer()));
+        try {
+            return finish(ofDocument(SEED,reader,listSample));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Hash a document with the open documents and lists on a work stack, deep documents cost no JVM frames.
+     * A field continues the hash of its document, a list element is hashed on its own and mixed into its list.
+     */
+    private static long ofDocument(long h, Document doc, int listSample){
+        Deque<Frame> frames = new ArrayDeque<>();
+        frames.push(new Frame(mix(h,DOCUMENT_START),false,doc.entrySet().iterator()));
+        while(true){
+            Frame frame = frames.peek();
+            if(!frame.values.hasNext()){
+                frames.pop();
+                long end = mix(frame.h,frame.list? LIST_END : DOCUMENT_END);
+                if(frames.isEmpty()){
+                    return end;
+                }
+                frames.peek().add(end);
+                continue;
+            }
+
+            Object value;
+            if(frame.list){
+                value = frame.values.next();
+                h = SEED;
+            } else {
+                Map.Entry<?,?> field = (Map.Entry<?,?>) frame.values.next();
+                value = field.getValue();
+                h = mix(frame.h,(String) field.getKey());
+            }
+            if(value instanceof Document){
+                frames.push(new Frame(mix(h,DOCUMENT_START),false,((Document) value).entrySet().iterator()));
+            } else if(value instanceof List){
+                h = mix(mix(h,LIST_START),CLASS_HASHES.get(value.getClass()));
+                frames.push(new Frame(h,true,ListSummary.sample((List<?>) value,listSample)));
+            } else {
+                frame.add(mix(h,value==null? NULL : CLASS_HASHES.get(value.getClass())));
+            }
+        }
+    }
+
+    /**
+     * Hash the document the reader is positioned on, with the same work stack as
+     * {@link #ofDocument(long, Document, int)}.
+     * Arrays are only hashed from their head, past the sample only the first non null element is still hashed.
+     */
+    private static long ofDocument(long h, BsonReader reader, int listSample){
+        Deque<Frame> frames = new ArrayDeque<>();
+        reader.readStartDocument();
+        frames.push(new Frame(mix(h,DOCUMENT_START),false,null));
+        while(true){
+            Frame frame = frames.peek();
+            if(reader.readBsonType()==BsonType.END_OF_DOCUMENT){
+                frames.pop();
+                long end;
+                if(frame.list){
+                    reader.readEndArray();
+                    end = mix(frame.h,LIST_END);
+                } else {
+                    reader.readEndDocument();
+                    end = mix(frame.h,DOCUMENT_END);
+                }
+                if(frames.isEmpty()){
+                    return end;
+                }
+                frames.peek().add(end);
+                continue;
+            }
+
+            BsonType bsonType = reader.getCurrentBsonType();
+            if(frame.list){
+                boolean isNull = bsonType==BsonType.NULL;
+                if(frame.inspected<listSample){
+                    frame.inspected++;
+                } else if(frame.found || isNull){
+                    reader.skipValue();// Past the sample, only the first non null element is still hashed
+                    continue;
+                }
+                frame.found |= !isNull;
+                h = SEED;
+            } else {
+                h = mix(frame.h,reader.readName());
+            }
+            switch(bsonType){
+                case NULL:
+                    reader.readNull();
+                    frame.add(mix(h,NULL));
+                    break;
+                case DOCUMENT:
+                    reader.readStartDocument();
+                    frames.push(new Frame(mix(h,DOCUMENT_START),false,null));
+                    break;
+                case ARRAY:
+                    reader.readStartArray();
+                    frames.push(new Frame(mix(mix(h,LIST_START),CLASS_HASHES.get(ArrayList.class)),true,null));
+                    break;
+                default:
+                    frame.add(mix(h,CLASS_HASHES.get(BsonTypes.getValueClass(reader))));
+                    reader.skipValue();
+            }
+        }
+    }
+
+    /**
+     * A document or list waiting on the work stack for its values, with its hash so far.
+     */
+    private static final class Frame {
+        private final boolean list;
+        /** The fields of a document or the sampled elements of a list, null for raw BSON. */
+        private final Iterator<?> values;
+        private long h;
+        /** The fingerprint of the last element mixed into a list. */
+        private long previous;
+        /** The elements of a raw array inspected so far. */
+        private int inspected;
+        /** Whether a non null element of a raw array has been hashed. */
+        private boolean found;
+
+        private Frame(long h, boolean list, Iterator<?> values){
+            this.h=h;
+            this.list=list;
+            this.values=values;
+        }
+
+        /**
+         * Add the hash of a value: a field's hash continues from the document's, an element's is mixed into the list.
+         * @param value - the hash of the value.
+         */
+        private void add(long value){
+            if(!list){
+                h = value;
+            } else if(value!=previous){// Collapse runs of elements with the same shape
+                h = mix(h,value);
+                previous = value;
+            }
+        }
+    }
+}
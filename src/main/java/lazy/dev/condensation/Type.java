@@ -11,6 +11,22 @@ import java.util.List;
 public enum Type {
     NULL, SIMPLE, DOCUMENT, EMPTY_LIST, SIMPLE_LIST, DOCUMENT_LIST, NESTED_LIST, NULL_LIST;
 
+    /**
+     * The type of the values of each class, looked up once per class instead of through instanceof checks.
+     * Every list class maps to EMPTY_LIST, a list's type is then decided by its elements.
+     */
+    private static final ClassValue<Type> CLASS_TYPES = new ClassValue<Type>() {
+        @Override
+        protected Type computeValue(Class<?> clazz){
+            if(Document.class.isAssignableFrom(clazz)){
+                return DOCUMENT;
+            } else if(List.class.isAssignableFrom(clazz)){
+                return EMPTY_LIST;
+            }
+            return SIMPLE;
+        }
+    };
+
     /**
      * Convenience method for checking if the type is a document.
      * @return true if the type is a document false otherwise.
@@ -51,69 +67,40 @@ public enum Type {
         return this.equals(EMPTY_LIST) || this.equals(SIMPLE_LIST) || this.equals(DOCUMENT_LIST) || this.equals(NESTED_LIST) || this.equals(NULL_LIST);
     }
 
-    /**
-     * Get the type for the given objects that will be merged.
-     * @param o1 - the first object.
-     * @param o2 - the second object.
-     * @return the type of the object, if one object is an empty list the other's type will be returned.
-     */
-    protected static Type getFuzzyType(Object o1, Object o2) {
-        Type t1 = Type.getType(o1);
-        Type t2 = Type.getType(o2);
-        if (t1.equals(t2)) {
-            return t1;
-        }
-        // Handle fuzzyValidation Criteria, If a one list is empty return the other's type
-        if (t1.equals(EMPTY_LIST) && t2.isList()) {
-            return t2;
-        } else if (t2.equals(EMPTY_LIST) && t1.isList()) {
-            return t1;
-        }
-
-        throw new IllegalStateException("Mismatched types: "+t1+","+t2+".");
-    }
-
     /**
      * Get the type from an object.
-     * Use {@link #getFuzzyType(Object, Object)} to satisfy fuzzyValidation criteria.
      * @param o - the object to inspect
      * @return the type of the object
      */
-    private static Type getType(Object o){
+    protected static Type getType(Object o){
         if(o==null){
             return NULL;
         }
-        else if(o instanceof Document){
-            return DOCUMENT;
-        } else if(o instanceof List){
-            return Type.getListType(o);
-        }
-        return SIMPLE;
+        Type type = CLASS_TYPES.get(o.getClass());
+        return type.isList()? Type.getListType(ListSummary.first((List) o)) : type;
     }
 
     /**
-     * Ge the type of the list.
-     * @param o - the object to inspect
+     * Get the type of a list from its summary, the first non null element decides the type.
+     * @param summary - the summary of the list to inspect.
      * @return the type of the list
      */
-    private static Type getListType(Object o){
-        if(((List) o).isEmpty()){
+    protected static Type getListType(ListSummary summary){
+        if(summary.isEmpty()){
             return EMPTY_LIST;
         }
 
-        for(Object element : (List) o){
-            if(element!=null){
-
-                if(element instanceof Document){
-                    return DOCUMENT_LIST;
-                } else if(element instanceof List){
-                    return NESTED_LIST;
-                }
-
+        Object element = summary.getFirst();
+        if(element==null){
+            return NULL_LIST;
+        }
+        switch(CLASS_TYPES.get(element.getClass())){
+            case DOCUMENT:
+                return DOCUMENT_LIST;
+            case EMPTY_LIST:
+                return NESTED_LIST;
+            default:
                 return SIMPLE_LIST;
-            }
         }
-
-        return NULL_LIST;
     }
 }
\ No newline at end of file
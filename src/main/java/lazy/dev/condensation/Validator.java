@@ -1,11 +1,13 @@
 package lazy.dev.condensation;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * Validation class to check some assumptions about the schema.
@@ -20,6 +22,7 @@ public class Validator {
 
     private static Logger logger = LoggerFactory.getLogger(Validator.class);
     private Map<Setting,Boolean> settings;
+    private Counter failures;
 
     public enum Conflict { MERGE_CONFLICT }
 
@@ -55,6 +58,16 @@ public class Validator {
     }
 
 
+    /**
+     * Count failed validations in a Micrometer registry as condensation.validation.failures.
+     * @param meterRegistry - the registry, null to count nothing.
+     */
+    public Validator withMeterRegistry(MeterRegistry meterRegistry){
+        this.failures = meterRegistry==null? null : Counter.builder("condensation.validation.failures")
+                .description("Failed validations").register(meterRegistry);
+        return this;
+    }
+
     /** Helper class to make it clear a validation exception was raised */
     protected static class ValidationException extends Exception {
         private ValidationException(String msg){
@@ -64,100 +77,77 @@ public class Validator {
 
     /**
      * Fail the validation and proceed based on settings.
-     * @param errorMessage - the error message to record for the failure.
+     * The message is only built to raise the exception or when debug logging is on, conflicts are reported once per
+     * schema by the {@link Generator} instead of logged one by one.
+     * @param errorMessage - builds the error message to record for the failure.
      * @return false indicating the validation has failed.
      * @throws ValidationException - when {@link Setting.FAIL_FAST} is true.
      */
-    protected boolean fail(String errorMessage) throws ValidationException {
+    protected boolean fail(Supplier<String> errorMessage) throws ValidationException {
+        if(failures!=null){
+            failures.increment();
+        }
         if(settings.get(Setting.FAIL_FAST)){
-            throw new ValidationException(errorMessage);
+            throw new ValidationException(errorMessage.get());
+        }
+        if(logger.isDebugEnabled()){
+            logger.debug(errorMessage.get());
         }
-        logger.warn(errorMessage);
         return false;
     }
+
     /**
-     * Check that the two objects are of the same type and if they are lists check that their elements are of the same type.
-     * Validation is not recursive. It stops at the List's element type. Validation will pass if one list is empty or null.
-     * @param key - the key corresponding to the objects.
-     * @param o1 - the first object to validate.
-     * @param o2 - the second object to validate against the first.
-     * @return true if validation was successful, false otherwise.
+     * Validate two nodes for the same key and get the type of their merge in a single step.
+     * Nodes must describe values of the same class and lists must have elements of the same class. Nodes of the same
+     * class must also have the same type unless one is an empty list.
+     * @param key - the key corresponding to the nodes.
+     * @param n1 - the first node, not null.
+     * @param n2 - the second node, not null.
+     * @return the type of the merged node, the other list's type if one is an empty list, null if validation failed.
      */
-    protected boolean fuzzyValidate(String key, Object o1, Object o2) throws ValidationException {
-        if(!this.haveSameClass(o1,o2)){
-            return this.fail("Miss-matched types for key "+key+": "+o1.getClass()+":["+o1+"] != "+o2.getClass()+":["+o2+"]");
+    protected Type getMergedType(String key, SchemaNode n1, SchemaNode n2) throws ValidationException {
+        Type t1 = n1.getType();
+        Type t2 = n2.getType();
+        if(n1.getValueClass()!=n2.getValueClass()){
+            this.fail(() -> "Miss-matched types for key "+key+": "+n1.getValueClass()+" != "+n2.getValueClass());
+            return null;
         }
-        if(o1 instanceof List && !this.areCongruent((List) o1,(List) o2) ){
-            return this.fail("Miss-matched types for key "+key+": "+"Lists o1 & o2 have elements of mismatched types!");
+        if(t1==Type.EMPTY_LIST || t2==Type.EMPTY_LIST){
+            return t1==Type.EMPTY_LIST? t2 : t1;// Both are lists since they have the same class
         }
-
-        return true;
-    }
-
-    /**
-     * Check if all the elements in the given Lists have the same type.
-     * @param l1 - the first List.
-     * @param l2 - the second ArrayList.
-     * @return true if both lists are empty or they contain elements of the same type, false otherwise.
-     */
-    protected boolean areCongruent(List l1, List l2){
-        if(l1.isEmpty() && l2.isEmpty()){
-            return true; // Both of the lists are empty and therefore have the same type
-        } else if(l1.isEmpty()){
-            return this.isCongruent(l2);// Check the non empty list
-        } else if(l2.isEmpty()){
-            return this.isCongruent(l1);// Check the non empty list
-        } else if(!this.isCongruent(l1) || !this.isCongruent(l2)){// Each list must have same type elements
-            return false;
+        if(t1.isList() && !this.haveSameClass(n1.getElements(),n2.getElements())){
+            this.fail(() -> "Miss-matched types for key "+key+": "+"Lists n1 & n2 have elements of mismatched types!");
+            return null;
+        }
+        if(t1!=t2){
+            this.fail(() -> "Miss-matched types for key "+key+": "+t1+" != "+t2);
+            return null;
         }
-        // At this point both lists have elements, and all the elements in each list individually have the same type.
-        // All that is left to check is that both lists's elements have the same type.
-        return this.haveSameClass(l1.get(0),l2.get(0));// Do the lists share the same type elements
+        return t1;
     }
 
     /**
-     * Check that every element in the list has the same type. (Not recursive)
-     * @param l1 - the list to check.
-     * @return true if every element has the same type, false otherwise.
+     * Check that every sampled element of a list has the same type. (Not recursive)
+     * @param summary - the summary of the list to check.
+     * @return true if every sampled element has the same type, false otherwise.
      */
-    protected boolean isCongruent(List l1){
-        if(l1.isEmpty()){ return true; }
-
-        Class<?> clazz = null;// Every element in both lists should be this type in order to return true
-        boolean initialized = false;
-
-        for(Object o : l1){
-            if(!initialized){
-                clazz = o==null? null: o.getClass();// Set clazz based on the first element, either null or the class
-                initialized=true;
-            } else {
-                if(clazz==null){
-                    if(o!=null){ return false;}// clazz is null but o is not
-                    // clazz and o are both null
-                } else {
-                    if(o==null){ return false; }// o is null but clazz is not
-                    if(!clazz.equals(o.getClass())){ return false; }// O's class is not clazz
-                    // O's class is clazz
-                }
-                // Either both are null or O's class is clazz
-            }
-        }
-        return true;
+    protected boolean isCongruent(ListSummary summary){
+        return summary.isCongruent();
     }
 
     /**
-     * Checks if two objects are of the same class not taking subclasses into consideration.
-     * @param o1 - the first object.
-     * @param o2 - the second object.
-     * @return true if they have the same class or are both null, false otherwise.
+     * Checks if two nodes describe values of the same class not taking subclasses into consideration.
+     * @param n1 - the first node.
+     * @param n2 - the second node.
+     * @return true if they have the same class or both describe null, false otherwise.
      */
-    protected boolean haveSameClass(Object o1, Object o2){
-        if(o1==null && o2==null){ return true;  }   // Both are null
-        if(o1==null || o2==null){ return false; }   // One is null but not both
+    protected boolean haveSameClass(SchemaNode n1, SchemaNode n2){
+        Class<?> c1 = n1==null? null : n1.getValueClass();
+        Class<?> c2 = n2==null? null : n2.getValueClass();
+        if(c1==null && c2==null){ return true;  }   // Both are null
+        if(c1==null || c2==null){ return false; }   // One is null but not both
         // Neither are null
-        return o1.getClass().equals(o2.getClass());
-
-
+        return c1.equals(c2);
     }
 
 }
@@ -1,14 +1,17 @@
 package lazy.dev.condensation.config;
 
 import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoDatabase;
 import lazy.dev.condensation.Generator;
 import lazy.dev.condensation.Validator;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 public class MongoConfig {
@@ -22,6 +25,39 @@ public class MongoConfig {
     @Value("${spring.data.mongodb.database}")
     private String database;
 
+    @Value("${condensation.partitions:1}")
+    private int partitions;
+
+    @Value("${condensation.aggregation-depth:0}")
+    private int aggregationDepth;
+
+    @Value("${condensation.list-sampling:1000}")
+    private int listSampling;
+
+    @Value("${condensation.batch-size:0}")
+    private int batchSize;
+
+    @Value("${condensation.prefetch:0}")
+    private int prefetch;
+
+    @Value("${condensation.pipeline-workers:2}")
+    private int pipelineWorkers;
+
+    @Value("${condensation.read-preference:primary}")
+    private String readPreference;
+
+    @Value("${condensation.max-time:0}")
+    private long maxTime;
+
+    @Value("${condensation.documents-per-second:0}")
+    private long documentsPerSecond;
+
+    @Value("${condensation.bytes-per-second:0}")
+    private long bytesPerSecond;
+
+    @Value("${condensation.adaptive-backoff:false}")
+    private boolean adaptiveBackoff;
+
     @Bean
     public MongoClient mongoClient(){
         return new MongoClient(host,port);
@@ -32,19 +68,29 @@ public class MongoConfig {
     }
 
     @Bean
-    public Validator validator() {
+    public Validator validator(MeterRegistry meterRegistry) {
         HashMap<Validator.Setting, Boolean> settings = new HashMap<>();
             settings.put(Validator.Setting.FAIL_FAST, false);
 
-        return new Validator().withSettings(settings);
+        return new Validator().withSettings(settings).withMeterRegistry(meterRegistry);
     }
 
     @Bean
-    public Generator generator(Validator validator){
+    public Generator generator(Validator validator, MeterRegistry meterRegistry){
         HashMap<Generator.Setting,Boolean> settings = new HashMap<>();
             settings.put(Generator.Setting.TRUNCATE_LISTS,false);
+            settings.put(Generator.Setting.RAW_BSON,true);
+            settings.put(Generator.Setting.ADAPTIVE_BACKOFF,adaptiveBackoff);
 
-        return new Generator().withSettings(settings).withValidator(validator);
+        return new Generator().withSettings(settings).withValidator(validator).withMeterRegistry(meterRegistry)
+                .withPartitions(partitions)
+                .withAggregationDepth(aggregationDepth)
+                .withListSampling(listSampling)
+                .withBatchSize(batchSize)
+                .withPipelining(prefetch,pipelineWorkers)
+                .withReadPreference(ReadPreference.valueOf(readPreference))
+                .withMaxTime(maxTime,TimeUnit.SECONDS)
+                .withThrottle(documentsPerSecond,bytesPerSecond);
     }
 
 }
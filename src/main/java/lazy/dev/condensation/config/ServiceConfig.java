@@ -0,0 +1,24 @@
+package lazy.dev.condensation.config;
+
+import lazy.dev.condensation.service.SchemaCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class ServiceConfig {
+
+    @Value("${condensation.cache.size:100}")
+    private int cacheSize;
+
+    @Value("${condensation.cache.ttl:600}")
+    private long cacheTtl;
+
+    @Bean
+    public SchemaCache schemaCache(){
+        return new SchemaCache(cacheSize,cacheTtl,TimeUnit.SECONDS);
+    }
+
+}
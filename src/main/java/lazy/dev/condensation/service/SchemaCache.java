@@ -0,0 +1,142 @@
+package lazy.dev.condensation.service;
+
+import lazy.dev.condensation.SchemaNode;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of generated schemas, by key, for the schema service.
+ * An entry is served until it is older than the time to live or the version of its collection changes, for example
+ * its count and data size. The least recently used entry is evicted once the cache is full.
+ * Concurrent requests for a key and version that are not cached share a single generation: the first request generates
+ * the schema and the others wait for it. A request for another version never waits on a generation of a stale one.
+ */
+public class SchemaCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final Map<String,Entry> entries;
+    /** The generations running, by key and version. */
+    private final Map<List<Object>,CompletableFuture<Entry>> generating = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxEntries - the maximum number of schemas kept.
+     * @param ttl - how long a schema is served for.
+     * @param unit - the unit of the time to live.
+     */
+    public SchemaCache(int maxEntries, long ttl, TimeUnit unit){
+        this(maxEntries,ttl,unit,System::nanoTime);
+    }
+
+    SchemaCache(int maxEntries, long ttl, TimeUnit unit, LongSupplier clock){
+        if(maxEntries<1){
+            throw new IllegalArgumentException("Cache size must be at least 1, found: "+maxEntries);
+        }
+        this.maxEntries=maxEntries;
+        this.ttlNanos=unit.toNanos(ttl);
+        this.clock=clock;
+        this.entries = new LinkedHashMap<String,Entry>(16,0.75f,true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest){
+                return this.size()>SchemaCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get the schema for a key, generating it if it is not cached, has expired or was cached for another version.
+     * @param key - the key of the schema, for example the collection and query.
+     * @param version - the current version of the collection, compared with equals.
+     * @param generate - generates the schema, called at most once at a time per key and version.
+     * @return the schema, null if the generated schema was null.
+     */
+    public SchemaNode get(String key, Object version, Supplier<SchemaNode> generate){
+        Entry cached = this.cached(key,version);
+        if(cached!=null){
+            return cached.schema;
+        }
+
+        List<Object> generationKey = Arrays.asList(key,version);
+        CompletableFuture<Entry> generation = new CompletableFuture<>();
+        CompletableFuture<Entry> running = generating.putIfAbsent(generationKey,generation);
+        if(running!=null){
+            return this.join(running).schema;// Another request is generating this schema, share its result
+        }
+        try {
+            Entry entry = this.cached(key,version);// A generation may have finished since the first lookup
+            if(entry==null){
+                entry = new Entry(generate.get(),version,clock.getAsLong());
+                synchronized(entries){
+                    entries.put(key,entry);
+                }
+            }
+            generation.complete(entry);
+            return entry.schema;
+        } catch(RuntimeException e){
+            generation.completeExceptionally(e);
+            throw e;
+        } finally {
+            generating.remove(generationKey,generation);
+        }
+    }
+
+    /**
+     * @return the number of schemas cached, expired ones included until they are evicted.
+     */
+    public int size(){
+        synchronized(entries){
+            return entries.size();
+        }
+    }
+
+    /**
+     * Get a cached entry that is still valid, dropping expired entries along the way.
+     */
+    private Entry cached(String key, Object version){
+        long now = clock.getAsLong();
+        synchronized(entries){
+            for(Iterator<Entry> i = entries.values().iterator(); i.hasNext();){
+                if(now-i.next().created>ttlNanos){
+                    i.remove();
+                }
+            }
+            Entry entry = entries.get(key);
+            return entry!=null && Objects.equals(entry.version,version)? entry : null;
+        }
+    }
+
+    private Entry join(CompletableFuture<Entry> generation){
+        try {
+            return generation.join();
+        } catch(CompletionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static class Entry {
+        private final SchemaNode schema;
+        private final Object version;
+        private final long created;
+
+        private Entry(SchemaNode schema, Object version, long created){
+            this.schema=schema;
+            this.version=version;
+            this.created=created;
+        }
+    }
+}
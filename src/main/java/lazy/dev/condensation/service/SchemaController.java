@@ -0,0 +1,79 @@
+package lazy.dev.condensation.service;
+
+import com.mongodb.client.MongoDatabase;
+import lazy.dev.condensation.Generator;
+import lazy.dev.condensation.SchemaNode;
+import lazy.dev.condensation.SchemaWriter;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves the schema of a collection over HTTP when the app runs as a service:
+ *   GET /schemas/{collection}?query={"status":"active"}&format=JSON_SCHEMA
+ * The query is optional extended JSON and the format one of {@link SchemaWriter.Format}, CONDENSED by default.
+ * Schemas come from the {@link SchemaCache}, versioned by the collection's count and data size so a collection that
+ * changed is condensed again. The schema is streamed to the response in the requested format.
+ */
+@RestController
+public class SchemaController {
+
+    private static Logger logger = LoggerFactory.getLogger(SchemaController.class);
+
+    @Autowired
+    MongoDatabase mongoDatabase;
+
+    @Autowired
+    Generator generator;
+
+    @Autowired
+    SchemaCache schemaCache;
+
+    @GetMapping("/schemas/{collection:.+}")
+    public void getSchema(@PathVariable String collection,
+                          @RequestParam(required = false) String query,
+                          @RequestParam(defaultValue = "CONDENSED") SchemaWriter.Format format,
+                          HttpServletResponse response) throws IOException {
+        BsonDocument filter = (query==null || query.isEmpty())? null : BsonDocument.parse(query);
+        String key = collection+(filter==null? "" : " "+filter.toJson());
+
+        SchemaNode schema = schemaCache.get(key,this.getVersion(collection),() -> {
+            logger.info("Condensing collection ["+collection+"] for the schema service, query: "+filter);
+            return generator.copy()
+                    .forCollection(mongoDatabase.getCollection(collection))
+                    .withQuery(filter)
+                    .generateSchemaNode();
+        });
+
+        response.setContentType("application/json;charset=UTF-8");
+        new SchemaWriter(format).write(schema,response.getOutputStream());
+    }
+
+    @ExceptionHandler(JsonParseException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public String invalidQuery(JsonParseException e){
+        return "Invalid query: "+e.getMessage();
+    }
+
+    /**
+     * The version of a collection, its count and data size, which change whenever documents are added or removed and
+     * almost always when they are updated.
+     */
+    private Document getVersion(String collection){
+        Document stats = mongoDatabase.runCommand(new Document("collStats",collection));
+        return new Document("count",stats.get("count")).append("size",stats.get("size"));
+    }
+}
@@ -0,0 +1,721 @@
+package lazy.dev.condensation;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Projections;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GeneratorTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testMergeKeepsTypesNotValues() {
+        Document schema = generator().forCollection(collection(
+                new Document("a", "x").append("b", 1),
+                new Document("a", "y").append("c", new Document("d", new Date())),
+                new Document("a", "z").append("e", list(1, 2, 3))
+        )).generateSchema();
+
+        Document expected = new Document("a", "String")
+                .append("b", "Integer")
+                .append("c", new Document("d", "Date"))
+                .append("e", Collections.singletonList("Integer"));
+        assertEquals(expected, schema);
+    }
+
+    @Test
+    public void testMergeDocumentLists() {
+        Document schema = generator().forCollection(collection(
+                new Document("list", list(new Document("a", 1), new Document("b", "x"))),
+                new Document("list", list()),
+                new Document("list", list(new Document("c", true)))
+        )).generateSchema();
+
+        Document element = new Document("a", "Integer").append("b", "String").append("c", "Boolean");
+        assertEquals(new Document("list", Collections.singletonList(element)), schema);
+    }
+
+    @Test
+    public void testMarkConflicts() {
+        Document schema = generator().forCollection(collection(
+                new Document("a", "x").append("b", null).append("list", list("a", 1)),
+                new Document("a", 1).append("b", 2.0)
+        )).generateSchema();
+
+        Document expected = new Document("a", Validator.Conflict.MERGE_CONFLICT.name())
+                .append("b", "Double")
+                .append("list", Validator.Conflict.MERGE_CONFLICT.name());
+        assertEquals(expected, schema);
+    }
+
+    @Test
+    public void testShapeFingerprint() {
+        Document doc = new Document("a", "x").append("list", list(1, 2, 3)).append("d", new Document("b", 1));
+        Document sameShape = new Document("a", "y").append("list", list(4)).append("d", new Document("b", 2));
+        Document otherClass = new Document("a", 1).append("list", list(4)).append("d", new Document("b", 2));
+        Document otherKey = new Document("a", "y").append("list", list(4)).append("d", new Document("c", 2));
+
+        assertEquals(ShapeFingerprint.of(doc), ShapeFingerprint.of(sameShape));
+        assertNotEquals(ShapeFingerprint.of(doc), ShapeFingerprint.of(otherClass));
+        assertNotEquals(ShapeFingerprint.of(doc), ShapeFingerprint.of(otherKey));
+    }
+
+    @Test
+    public void testCollidingKeys() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertEquals(0xb456bcfc34c2cb2cL, Hash64.finish(1));// The reference fmix64 of 1
+        assertNotEquals(Hash64.mix(Hash64.SEED, "Aa"), Hash64.mix(Hash64.SEED, "BB"));
+        Document aa = new Document("Aa", 1).append("d", new Document("FB", "x"));
+        Document bb = new Document("BB", 1).append("d", new Document("Ea", "x"));
+        assertNotEquals(ShapeFingerprint.of(aa), ShapeFingerprint.of(bb));
+        assertNotEquals(ShapeFingerprint.of(new RawBsonDocument(aa, new DocumentCodec())),
+                ShapeFingerprint.of(new RawBsonDocument(bb, new DocumentCodec())));
+
+        Map<Generator.Setting, Boolean> raw = new HashMap<>();
+        raw.put(Generator.Setting.RAW_BSON, true);
+        Document expected = new Document("Aa", "Integer").append("d", new Document("FB", "String").append("Ea", "String"))
+                .append("BB", "Integer");
+        assertEquals(expected, generator().forCollection(collection(aa, bb)).generateSchema());
+        assertEquals(expected, generator().withSettings(raw).forCollection(collection(aa, bb)).generateSchema());
+    }
+
+    @Test
+    public void testRawBsonMatchesDecoded() {
+        Document[] documents = {
+                new Document("a", "x").append("list", list(null, 1, 2)).append("nested", list(list(1, 2), list(3))),
+                new Document("a", 1L).append("d", new Document("b", new ObjectId())).append("nulls", list(null, null)),
+                new Document("docs", list(new Document("b", 1), new Document("c", new Date()))).append("empty", list()),
+                new Document("docs", list()).append("id", UUID.randomUUID()).append("n", null)
+        };
+        Map<Generator.Setting, Boolean> raw = new HashMap<>();
+        raw.put(Generator.Setting.RAW_BSON, true);
+
+        Document decodedSchema = generator().forCollection(collection(documents)).generateSchema();
+        Document rawSchema = generator().withSettings(raw).forCollection(collection(documents)).generateSchema();
+
+        assertEquals(decodedSchema, rawSchema);
+        assertEquals("MERGE_CONFLICT", rawSchema.get("list"));
+        assertEquals("UUID", rawSchema.get("id"));
+
+        Map<Generator.Setting, Boolean> truncate = new HashMap<>();
+        truncate.put(Generator.Setting.TRUNCATE_LISTS, true);
+        assertEquals(generator().withSettings(truncate).forCollection(collection(documents)).generateSchema(),
+                generator().withSettings(truncate).withSettings(raw).forCollection(collection(documents)).generateSchema());
+
+        Document doc = documents[2];
+        assertEquals(ShapeFingerprint.of(doc), ShapeFingerprint.of(new RawBsonDocument(doc, new DocumentCodec())));
+    }
+
+    @Test
+    public void testMergeClassifiesOnce() {
+        Document schema = generator().forCollection(collection(
+                new Document("n", list(list(1))).append("d", new Document("b", 1)),
+                new Document("n", list(list(2, 3))).append("d", new Document("b", 2).append("c", "x")).append("e", list()),
+                new Document("e", list("s")).append("f", 1),
+                new Document("f", "s"))).generateSchema();
+
+        assertEquals(list(list("Integer")), schema.get("n"));
+        assertEquals(new Document("b", "Integer").append("c", "String"), schema.get("d"));
+        assertEquals(list("String"), schema.get("e"));
+        assertEquals("MERGE_CONFLICT", schema.get("f"));
+        assertEquals(Type.DOCUMENT_LIST, Type.getType(new LinkedList<>(list(null, new Document()))));
+        assertEquals(Type.NESTED_LIST, Type.getType(list(list())));
+    }
+
+    @Test
+    public void testMergeNestedLists() {
+        Document[] documents = {
+                new Document("m", list(list(new Document("a", 1)), list(new Document("b", "x")))),
+                new Document("m", list(list(new Document("c", true)), list())).append("n", list(list(list(1)))),
+                new Document("n", list(list(list(2), list())))
+        };
+        Map<Generator.Setting, Boolean> raw = new HashMap<>();
+        raw.put(Generator.Setting.RAW_BSON, true);
+
+        Document schema = generator().forCollection(collection(documents)).generateSchema();
+
+        Document element = new Document("a", "Integer").append("b", "String").append("c", "Boolean");
+        assertEquals(list(list(element)), schema.get("m"));
+        assertEquals(list(list(list("Integer"))), schema.get("n"));
+        assertEquals(schema, generator().withSettings(raw).forCollection(collection(documents)).generateSchema());
+    }
+
+    @Test
+    public void testMergeDeepDocuments() {
+        int depth = 20_000;// Far deeper than the JVM stack allows recursing
+        Document d1 = new Document(), d2 = new Document();
+        Document n1 = d1, n2 = d2;
+        for(int i = 0; i < depth; i++){
+            Document c1 = new Document(), c2 = new Document();
+            n1.put("d", i % 2 == 0 ? c1 : list(c1));
+            n2.put("d", i % 2 == 0 ? c2 : list(c2));
+            n1 = c1;
+            n2 = c2;
+        }
+        n1.put("a", 1);
+        n2.put("b", "x");
+
+        Document schema = generator().forCollection(collection(d1, d2)).generateSchema();
+
+        Object node = schema;
+        for(int i = 0; i < depth; i++){
+            node = ((Document) node).get("d");
+            if(i % 2 == 1){
+                assertEquals(1, ((List<?>) node).size());
+                node = ((List<?>) node).get(0);
+            }
+        }
+        assertEquals(new Document("a", "Integer").append("b", "String"), node);
+
+        SchemaNode merged = generator().forCollection(collection(d1, d2)).generateSchemaNode();
+        SchemaNode reversed = generator().forCollection(collection(d2, d1)).generateSchemaNode();
+        assertEquals(merged, reversed);
+        assertEquals(merged.hashCode(), reversed.hashCode());
+        assertNotEquals(merged, generator().forCollection(collection(d1)).generateSchemaNode());
+        assertNotEquals(ShapeFingerprint.of(d1), ShapeFingerprint.of(d2));
+    }
+
+    @Test
+    public void testSchemaWriter() {
+        Generator generator = generator().forCollection(collection(
+                new Document("a", "x").append("n", null).append("d", new Document("b", 1L)).append("when", new Date()),
+                new Document("a", 1).append("tags", list("t")).append("items", list(new Document("id", new ObjectId())))
+                        .append("empty", list()).append("nested", list(list(1.5))),
+                new Document("s", "x").append("o", null),
+                new Document("s", null).append("o", new Document("k", true))));
+        SchemaNode schema = generator.generateSchemaNode();
+
+        StringWriter condensed = new StringWriter();
+        new SchemaWriter(SchemaWriter.Format.CONDENSED).write(schema, condensed);
+        assertEquals(schema.toDocument(), Document.parse(condensed.toString()));
+
+        StringWriter jsonSchema = new StringWriter();
+        new SchemaWriter(SchemaWriter.Format.JSON_SCHEMA).withIndent(true).write(schema, jsonSchema);
+        Document properties = Document.parse(jsonSchema.toString()).get("properties", Document.class);
+        assertEquals(new Document(), properties.get("a"));// A conflict matches anything
+        assertEquals(new Document("type", "null"), properties.get("n"));
+        assertEquals(Document.parse("{type: 'object', properties: {b: {type: 'integer'}}}"), properties.get("d"));
+        assertEquals(Document.parse("{type: 'string', format: 'date-time'}"), properties.get("when"));
+        assertEquals(Document.parse("{type: 'array', items: {type: 'object', properties: {id: {type: 'string'}}}}"), properties.get("items"));
+        assertEquals(new Document("type", "array"), properties.get("empty"));
+        assertEquals(Document.parse("{type: 'array', items: {type: 'array', items: {type: 'number'}}}"), properties.get("nested"));
+        assertEquals(Document.parse("{type: ['null', 'string']}"), properties.get("s"));
+        assertEquals(Document.parse("{type: ['null', 'object'], properties: {k: {type: 'boolean'}}}"), properties.get("o"));
+
+        StringWriter mongo = new StringWriter();
+        new SchemaWriter(SchemaWriter.Format.MONGO_JSON_SCHEMA).write(Collections.singletonMap("test", schema), mongo);
+        Document mongoProperties = Document.parse(mongo.toString()).get("test", Document.class)
+                .get("$jsonSchema", Document.class).get("properties", Document.class);
+        assertEquals(Document.parse("{bsonType: 'object', properties: {b: {bsonType: 'long'}}}"), mongoProperties.get("d"));
+        assertEquals(Document.parse("{bsonType: 'array', items: {bsonType: 'string'}}"), mongoProperties.get("tags"));
+        assertEquals(new Document("bsonType", "date"), mongoProperties.get("when"));
+        assertEquals(Document.parse("{bsonType: ['null', 'string']}"), mongoProperties.get("s"));
+    }
+
+    @Test
+    public void testDump() throws IOException {
+        SyntheticWorkload workload = new SyntheticWorkload().withShapes(3).withConflicts(0.1);
+        Document[] documents = new Document[500];
+        Path dump = temporaryFolder.newFile("workload.bson").toPath();
+        Path gzipped = temporaryFolder.newFile("workload.bson.gz").toPath();
+        DocumentCodec codec = new DocumentCodec();
+        try(OutputStream out = Files.newOutputStream(dump); OutputStream gz = new GZIPOutputStream(Files.newOutputStream(gzipped))){
+            for(int i = 0; i < documents.length; i++){
+                documents[i] = workload.document(i);
+                ByteBuffer bytes = new RawBsonDocument(documents[i], codec).getByteBuffer().asNIO();
+                byte[] array = new byte[bytes.remaining()];
+                bytes.get(array);
+                out.write(array);
+                gz.write(array);
+            }
+        }
+        Map<Generator.Setting, Boolean> raw = new HashMap<>();
+        raw.put(Generator.Setting.RAW_BSON, true);
+        Document expected = generator().withSettings(raw).forCollection(collection(documents)).generateSchema();
+
+        try(FileChannel channel = FileChannel.open(dump, StandardOpenOption.READ)){
+            List<ByteBuffer> chunks = BsonDump.split(channel, 10_000);
+            long[] read = {0};
+            chunks.forEach(chunk -> BsonDump.read(chunk, document -> read[0]++));
+            assertTrue(chunks.size() > 1);
+            assertEquals(documents.length, read[0]);
+        }
+        Generator generator = generator().withPartitions(4).forDump(dump);
+        assertEquals(expected, generator.generateSchema());
+        assertEquals(documents.length, generator.generateStatistics().getDocuments());
+        assertEquals(expected, generator().forDump(gzipped).generateSchema());
+    }
+
+    @Test
+    public void testJsonDump() throws IOException {
+        SyntheticWorkload workload = new SyntheticWorkload().withShapes(3).withConflicts(0.1);
+        List<Document> documents = new ArrayList<>();
+        for(int i = 0; i < 300; i++){
+            documents.add(workload.document(i));
+        }
+        documents.add(new Document("_id", new ObjectId()).append("when", new Date()).append("id", UUID.randomUUID())
+                .append("price", new Decimal128(1)).append("blob", new Binary(new byte[]{1, 2})).append("n", null)
+                .append("empty", new Document()).append("none", list()).append("big", 1L << 40).append("ratio", 0.5));
+        Path export = temporaryFolder.newFile("export.json").toPath();
+        Path gzipped = temporaryFolder.newFile("export.ndjson.gz").toPath();
+        JsonWriterSettings canonical = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+        try(Writer out = Files.newBufferedWriter(export);
+            Writer gz = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(gzipped)), StandardCharsets.UTF_8)){
+            for(Document document : documents){
+                out.write(document.toJson() + "\n");// Legacy extended JSON, like older mongoexports
+                gz.write(document.toJson(canonical) + "\n");
+            }
+        }
+        Map<Generator.Setting, Boolean> raw = new HashMap<>();
+        raw.put(Generator.Setting.RAW_BSON, true);
+        Document expected = generator().withSettings(raw).forCollection(collection(documents.toArray(new Document[0]))).generateSchema();
+
+        try(FileChannel channel = FileChannel.open(export, StandardOpenOption.READ)){
+            List<ByteBuffer> chunks = JsonDump.split(channel, 10_000);
+            long[] read = {0};
+            for(ByteBuffer chunk : chunks){
+                JsonDump.read(chunk, document -> read[0]++);
+            }
+            assertTrue(chunks.size() > 1);
+            assertEquals(documents.size(), read[0]);
+        }
+        assertEquals(expected, generator().withPartitions(4).forDump(export).generateSchema());
+        assertEquals(expected, generator().forDump(gzipped).generateSchema());
+    }
+
+    @Test
+    public void testStatistics() {
+        Document[] documents = {
+                new Document("a", "x").append("tags", list("t", "u")).append("items", list(new Document("n", 1))),
+                new Document("a", null).append("tags", list()),
+                new Document("a", 1).append("tags", list("v", null, "w", "x"))
+        };
+        Map<Generator.Setting, Boolean> raw = new HashMap<>();
+        raw.put(Generator.Setting.RAW_BSON, true);
+
+        SchemaStatistics statistics = generator().forCollection(collection(documents)).generateStatistics();
+
+        assertEquals(3, statistics.getDocuments());
+        assertEquals(Arrays.asList("a", "tags", "tags[]", "items", "items[]", "items[].n"), statistics.getPaths());
+        assertEquals(3, statistics.getCount("a"));
+        assertEquals(1, statistics.getNulls("a"));
+        assertEquals(Long.valueOf(1), statistics.getTypes("a").get(BsonType.INT32));
+        assertEquals(0, statistics.getMinLength("tags"));
+        assertEquals(4, statistics.getMaxLength("tags"));
+        assertEquals(-1, statistics.getMaxLength("a"));
+        assertEquals(new Document("count", 6L).append("nulls", 1L).append("types", new Document("string", 5L).append("null", 1L)),
+                statistics.toDocument().get("tags[]"));
+        assertEquals(generator().forCollection(collection(documents)).generateSchema(), statistics.getSchema());
+        assertEquals(statistics.toDocument(), generator().withSettings(raw).forCollection(collection(documents)).generateStatistics().toDocument());
+
+        SchemaStatistics combined = new SchemaStatistics();
+        combined.add(documents[2]);
+        SchemaStatistics other = new SchemaStatistics();
+        other.add(documents[0]);
+        other.add(documents[1]);
+        combined.combine(other);
+        assertEquals(statistics.getTypes("tags[]"), combined.getTypes("tags[]"));
+        assertEquals(statistics.getMinLength("tags"), combined.getMinLength("tags"));
+    }
+
+    @Test
+    public void testMetrics() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        Map<Validator.Setting, Boolean> validatorSettings = new HashMap<>();
+        validatorSettings.put(Validator.Setting.FAIL_FAST, false);
+
+        generator()
+                .withValidator(new Validator().withSettings(validatorSettings).withMeterRegistry(registry))
+                .withMeterRegistry(registry)
+                .forCollection(collection(new Document("a", 1), new Document("a", 2), new Document("a", "x")))
+                .generateSchema();
+
+        assertEquals(3, registry.get("condensation.documents").tag("collection", "test").counter().count(), 0);
+        assertEquals(2, registry.get("condensation.shapes").counter().count(), 0);
+        assertEquals(2, registry.get("condensation.merge").timer().count());
+        assertEquals(1, registry.get("condensation.conflicts").tag("path", "a").counter().count(), 0);
+        assertEquals(1, registry.get("condensation.validation.failures").counter().count(), 0);
+        assertEquals(2, registry.get("condensation.schema.size").summary().totalAmount(), 0);
+
+        GeneratorMetrics metrics = new GeneratorMetrics(registry, "capped");
+        for (int i = 0; i <= GeneratorMetrics.MAX_CONFLICT_PATHS; i++) {
+            metrics.conflict("k" + i);
+        }
+        metrics.conflict("k0");
+        assertEquals(2, registry.get("condensation.conflicts").tags("collection", "capped", "path", "k0").counter().count(), 0);
+        assertEquals(1, registry.get("condensation.conflicts").tags("collection", "capped", "path", GeneratorMetrics.OTHER_PATH).counter().count(), 0);
+        assertEquals(GeneratorMetrics.MAX_CONFLICT_PATHS + 1, registry.find("condensation.conflicts").tag("collection", "capped").counters().size());
+    }
+
+    @Test
+    public void testConflicts() {
+        Map<Validator.Setting, Boolean> validatorSettings = new HashMap<>();
+        validatorSettings.put(Validator.Setting.FAIL_FAST, false);
+        Map<Generator.Setting, Boolean> unmarked = new HashMap<>();
+        unmarked.put(Generator.Setting.MARK_CONFLICTS, false);// Keep merging into the first type to count every conflict
+        Generator generator = generator().withSettings(unmarked).withValidator(new Validator().withSettings(validatorSettings))
+                .forCollection(collection(new Document("a", 1), new Document("a", "x"), new Document("a", 2L),
+                        new Document("b", Arrays.asList(1, "x"))));
+
+        generator.generateSchema();
+        Map<String, Long> conflicts = generator.getConflicts();
+
+        assertEquals(2, conflicts.size());
+        assertEquals(2, (long) conflicts.get("a"));
+        assertEquals(1, (long) conflicts.get("b"));
+        generator.generateSchema();
+        assertEquals(conflicts, generator.getConflicts());// Counted again for each schema
+
+        ConflictCollector collector = new ConflictCollector();
+        SchemaNode n1 = SchemaNode.simple(Integer.class);
+        SchemaNode n2 = SchemaNode.simple(String.class);
+        for(int i = 0; i <= ConflictCollector.MAX_KEYS; i++){
+            collector.record("k" + i, n1, n2);
+        }
+        assertEquals(ConflictCollector.MAX_KEYS, collector.getCounts().size());
+        assertEquals(ConflictCollector.MAX_KEYS + 1, collector.getTotal());
+    }
+
+    @Test
+    public void testConflictPaths() {
+        for (boolean raw : new boolean[]{false, true}) {
+            MeterRegistry registry = new SimpleMeterRegistry();
+            Map<Validator.Setting, Boolean> validatorSettings = new HashMap<>();
+            validatorSettings.put(Validator.Setting.FAIL_FAST, false);
+            Map<Generator.Setting, Boolean> settings = new HashMap<>();
+            settings.put(Generator.Setting.RAW_BSON, raw);
+            Generator generator = generator().withSettings(settings)
+                    .withValidator(new Validator().withSettings(validatorSettings))
+                    .withMeterRegistry(registry)
+                    .forCollection(collection(
+                            new Document("a", new Document("id", 1))
+                                    .append("b", new Document("items", list(new Document("id", 1).append("tags", list(1, "x")))))
+                                    .append("c", list(list(1))),
+                            new Document("a", new Document("id", "x"))
+                                    .append("b", new Document("items", list(new Document("id", "x"))))
+                                    .append("c", list(list("x")))));
+
+            generator.generateSchema();
+
+            Map<String, Long> expected = new HashMap<>();
+            expected.put("a.id", 1L);
+            expected.put("b.items[].id", 1L);
+            expected.put("b.items[].tags", 1L);
+            expected.put("c[]", 1L);
+            assertEquals(expected, generator.getConflicts());
+            assertEquals(1, registry.get("condensation.conflicts").tag("path", "b.items[].id").counter().count(), 0);
+        }
+    }
+
+    @Test
+    public void testMaxTimeSkipsScans() {
+        InMemoryCollection collection = new InMemoryCollection(new Document("a", list(1)), new Document("a", list(2)));
+        Map<Generator.Setting, Boolean> settings = new HashMap<>();
+        settings.put(Generator.Setting.TRUNCATE_LISTS, true);// Probes the first documents for their lists
+
+        generator().withSettings(settings).withMaxTime(5, TimeUnit.SECONDS).forCollection(collection.collection()).generateSchema();
+
+        List<Map<String, Object>> finds = collection.getFinds();
+        assertEquals(2, finds.size());
+        assertTrue(finds.get(0).containsKey("limit"));// The probe is bounded and limited
+        assertTrue(finds.get(0).containsKey("maxTime"));
+        assertFalse(finds.get(1).containsKey("maxTime"));// The scan is not, it would fail on a large collection
+    }
+
+    @Test
+    public void testProbeIsNotCounted() {
+        for (boolean raw : new boolean[]{false, true}) {
+            MeterRegistry registry = new SimpleMeterRegistry();
+            Map<Validator.Setting, Boolean> validatorSettings = new HashMap<>();
+            validatorSettings.put(Validator.Setting.FAIL_FAST, false);
+            Map<Generator.Setting, Boolean> settings = new HashMap<>();
+            settings.put(Generator.Setting.TRUNCATE_LISTS, true);// Probes the first documents for their lists
+            settings.put(Generator.Setting.RAW_BSON, raw);
+            Generator generator = generator().withSettings(settings)
+                    .withValidator(new Validator().withSettings(validatorSettings).withMeterRegistry(registry))
+                    .withMeterRegistry(registry)
+                    .forCollection(collection(new Document("a", 1).append("tags", list("x")),
+                            new Document("a", "x").append("d", new Document("l", list(1)))));
+
+            generator.generateSchema();
+
+            assertEquals(Collections.singletonMap("a", 1L), generator.getConflicts());
+            assertEquals(2, registry.get("condensation.documents").counter().count(), 0);
+            assertEquals(2, registry.get("condensation.shapes").counter().count(), 0);
+            assertEquals(1, registry.get("condensation.conflicts").tag("path", "a").counter().count(), 0);
+            assertEquals(1, registry.get("condensation.validation.failures").counter().count(), 0);
+        }
+    }
+
+    @Test
+    public void testListSampling() {
+        List<Object> strings = new ArrayList<>(Collections.nCopies(10_000, "s"));
+        strings.set(9_999, 1);
+        List<Object> nulls = new ArrayList<>(Collections.nCopies(200, null));
+        nulls.add(new Document("a", 1));
+        Document doc = new Document("strings", strings).append("nulls", nulls);
+        Map<Generator.Setting, Boolean> raw = new HashMap<>();
+        raw.put(Generator.Setting.RAW_BSON, true);
+
+        Document sampled = generator().withListSampling(100).forCollection(collection(doc)).generateSchema();
+
+        assertEquals(list("String"), sampled.get("strings"));
+        assertEquals(list(new Document("a", "Integer")), sampled.get("nulls"));
+        assertEquals(sampled, generator().withListSampling(100).withSettings(raw).forCollection(collection(doc)).generateSchema());
+        assertEquals("MERGE_CONFLICT", generator().forCollection(collection(doc)).generateSchema().get("strings"));
+        assertEquals(100, ListSummary.of(strings, 100).getSample().size());
+
+        Document longer = new Document("strings", new ArrayList<>(Collections.nCopies(20_000, "s"))).append("nulls", nulls);
+        Document shorter = new Document("strings", list("s", "s")).append("nulls", nulls);
+        assertEquals(ShapeFingerprint.of(doc, 100), ShapeFingerprint.of(longer, 100));
+        assertEquals(ShapeFingerprint.of(doc, 100), ShapeFingerprint.of(shorter, 100));
+        assertEquals(ShapeFingerprint.of(new RawBsonDocument(doc, new DocumentCodec()), 100),
+                ShapeFingerprint.of(new RawBsonDocument(shorter, new DocumentCodec()), 100));
+        assertNotEquals(ShapeFingerprint.of(doc), ShapeFingerprint.of(longer));
+        assertNotEquals(ShapeFingerprint.of(new Document("nulls", list(null, null, 1)), 1),
+                ShapeFingerprint.of(new Document("nulls", list(null, null, "s")), 1));
+    }
+
+    @Test
+    public void testAggregationRows() {
+        MongoCollection<Document> collection = collection(
+                row("object"), row("string", "a"), row("null", "a"), row("array", "tags"), row("string", "tags", null),
+                row("object", "d"), row("int", "d", "b"), row("array", "docs"), row("object", "docs", null),
+                row("date", "docs", null, "x"), row("long", "n"), row("double", "n"));
+
+        Document schema = generator().withAggregationDepth(3).forCollection(collection).generateSchema();
+
+        Document expected = new Document("a", "String")
+                .append("tags", list("String"))
+                .append("d", new Document("b", "Integer"))
+                .append("docs", list(new Document("x", "Date")))
+                .append("n", Validator.Conflict.MERGE_CONFLICT.name());
+        assertEquals(expected, schema);
+    }
+
+    /** A grouped row as returned by the {@link PathTypeAggregation}. */
+    private static Document row(String type, Object... path) {
+        Document id = new Document(PathTypeAggregation.PATH, list(path)).append(PathTypeAggregation.TYPE, type);
+        return new Document(PathTypeAggregation.ID, id).append(PathTypeAggregation.COUNT, 1);
+    }
+
+    @Test
+    public void testSampleConverges() {
+        Document[] documents = new Document[20];
+        documents[0] = new Document("a", "x");
+        documents[1] = new Document("a", "y").append("b", 1);
+        documents[2] = new Document("b", 2).append("c", list(1));
+        for (int i = 3; i < documents.length; i++) {
+            documents[i] = new Document("a", "z" + i).append("c", list());
+        }
+
+        SchemaSample sample = generator().withSampling(100, 5).forCollection(collection(documents)).sampleSchema();
+
+        assertTrue(sample.isConverged());
+        assertEquals(8, sample.getDocumentsRead());
+        assertEquals(new Document("a", "String").append("b", "Integer").append("c", list("Integer")), sample.getSchema());
+        assertEquals(Math.pow(0.05, 1.0 / 5), sample.getConfidence(), 1e-9);
+    }
+
+    @Test
+    public void testCheckpointRoundTrip() throws IOException {
+        ObjectId firstId = new ObjectId();
+        ObjectId lastId = new ObjectId();
+        MongoCollection<Document> collection = collection(
+                new Document("_id", firstId).append("a", list(new Document("$ref", "x").append("$id", 1))),
+                new Document("_id", lastId).append("a", list()).append("b", "x").append("c", list(1, "a")));
+
+        SchemaCheckpoint checkpoint = generator().forCollection(collection).resume(new SchemaCheckpoint());
+        assertEquals(lastId, checkpoint.getLastId());
+        assertEquals(2, checkpoint.getDocuments());
+
+        Path path = temporaryFolder.newFile().toPath();
+        checkpoint.save(path);
+        SchemaCheckpoint loaded = SchemaCheckpoint.load(path);
+
+        assertEquals(checkpoint.getSchema(), loaded.getSchema());
+        assertEquals(checkpoint.getSchemaNode(), loaded.getSchemaNode());
+        assertEquals(lastId, loaded.getLastId());
+        assertEquals(2, loaded.getDocuments());
+    }
+
+    @Test
+    public void testRawBsonCheckpoint() throws IOException {
+        ObjectId firstId = new ObjectId(new Date(1_000_000L));
+        ObjectId lastId = new ObjectId(new Date(2_000_000L));
+        Map<Generator.Setting, Boolean> raw = new HashMap<>();
+        raw.put(Generator.Setting.RAW_BSON, true);
+
+        SchemaCheckpoint checkpoint = generator().withSettings(raw).withBatchSize(10)
+                .forCollection(collection(new Document("_id", firstId).append("a", 1), new Document("_id", lastId).append("b", "x")))
+                .resume(new SchemaCheckpoint());
+        assertEquals(lastId, checkpoint.getLastId());
+        assertEquals(new Document("_id", "ObjectId").append("a", "Integer").append("b", "String"), checkpoint.getSchema());
+
+        Path path = temporaryFolder.newFile().toPath();
+        checkpoint.save(path);
+        assertEquals(checkpoint.getLastId(), SchemaCheckpoint.load(path).getLastId());
+
+        SchemaCheckpoint unchanged = generator().withSettings(raw).forCollection(collection()).resume(checkpoint);
+        assertEquals(lastId, unchanged.getLastId());// Nothing new, the last _id is kept
+    }
+
+    @Test
+    public void testEmptyCollection() {
+        assertNull(generator().forCollection(collection()).generateSchema());
+    }
+
+    @Test
+    public void testGenerateSchemas() {
+        Map<String, InMemoryCollection> collections = new HashMap<>();
+        collections.put("people", new InMemoryCollection(new Document("name", "a"), new Document("name", "b").append("age", 1)));
+        collections.put("empty", new InMemoryCollection());
+        collections.put("tags", new InMemoryCollection(new Document("tags", list("x"))));
+        collections.put("system.views", new InMemoryCollection(new Document("viewOn", "people")));
+        Generator generator = generator().withReadPreference(ReadPreference.secondaryPreferred());
+
+        Map<String, Document> schemas = generator.generateSchemas(InMemoryCollection.database(collections), 2);
+
+        assertEquals(Arrays.asList("empty", "people", "tags"), new ArrayList<>(schemas.keySet()));
+        assertNull(schemas.get("empty"));
+        assertEquals(new Document("name", "String").append("age", "Integer"), schemas.get("people"));
+        assertEquals(new Document("tags", list("String")), schemas.get("tags"));
+        for (InMemoryCollection collection : collections.values()) {// Collections are sized and scanned on the same members
+            assertTrue(collection.getReads().stream().allMatch(ReadPreference.secondaryPreferred()::equals));
+        }
+        assertEquals(2, collections.get("people").getReads().size());
+    }
+
+    @Test
+    public void testSlicePushdown() {
+        InMemoryCollection collection = new InMemoryCollection(new Document("tags", list("a", "b"))
+                .append("blob", "large")
+                .append("nested", new Document("scores", list(1, 2)))
+                .append("items", list(new Document("inner", list(1)))));
+        Map<Generator.Setting, Boolean> settings = new HashMap<>();
+        settings.put(Generator.Setting.TRUNCATE_LISTS, true);
+
+        Document schema = generator().withSettings(settings)
+                .withProjection(Projections.exclude("blob"))
+                .withSlice("tags", 1)
+                .forCollection(collection.collection())
+                .generateSchema();
+
+        List<Map<String, Object>> finds = collection.getFinds();
+        assertEquals(BsonDocument.parse("{blob: 0, tags: {$slice: 1}, 'nested.scores': {$slice: 10}, items: {$slice: 10}}"),
+                ((Bson) finds.get(finds.size() - 1).get("projection")).toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()));
+        assertEquals(list("String"), schema.get("tags"));
+    }
+
+    @Test
+    public void testPipelineFailure() {
+        InMemoryCollection collection = new InMemoryCollection(new SyntheticWorkload(), 1_000)
+                .withFailure(250, new IllegalStateException("Connection lost"));
+
+        try {
+            generator().withBatchSize(10).withPipelining(1, 2).forCollection(collection.collection()).generateSchema();
+            fail("The cursor's failure should be thrown");
+        } catch (RuntimeException e) {
+            assertEquals("Connection lost", e.getCause().getMessage());
+        }
+    }
+
+    /** Lists decoded by the driver are always ArrayLists, which the validator compares by class. */
+    static List<Object> list(Object... elements) {
+        return new ArrayList<>(Arrays.asList(elements));
+    }
+
+    /** A generator that marks conflicts instead of failing and inspects every list element. */
+    static Generator generator() {
+        Map<Validator.Setting, Boolean> validatorSettings = new HashMap<>();
+        validatorSettings.put(Validator.Setting.FAIL_FAST, false);
+        Map<Generator.Setting, Boolean> settings = new HashMap<>();
+        settings.put(Generator.Setting.TRUNCATE_LISTS, false);
+        return new Generator()
+                .withSettings(settings)
+                .withValidator(new Validator().withSettings(validatorSettings));
+    }
+
+    /** An {@link InMemoryCollection} of the given documents, decoded or as raw BSON. */
+    static MongoCollection<Document> collection(Document... documents) {
+        return new InMemoryCollection(documents).collection();
+    }
+
+    /**
+     * Implement an interface with a lambda, the driver's interfaces are too wide to implement by hand.
+     * Fluent methods the lambda doesn't answer return the stub itself.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<?> type, BiFunction<Method, Object[], Object> answer) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Object result = answer.apply(method, args);
+            return result == null && method.getReturnType().isInstance(proxy) ? proxy : result;
+        });
+    }
+
+    static <T> MongoCursor<T> cursor(Iterator<T> iterator) {
+        return new MongoCursor<T>() {
+            @Override public void close() { }
+            @Override public boolean hasNext() { return iterator.hasNext(); }
+            @Override public T next() { return iterator.next(); }
+            @Override public T tryNext() { return iterator.hasNext() ? iterator.next() : null; }
+            @Override public ServerCursor getServerCursor() { return null; }
+            @Override public ServerAddress getServerAddress() { return null; }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+package lazy.dev.condensation;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static lazy.dev.condensation.GeneratorTests.list;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdRangePartitionerTests {
+
+    @Test
+    public void testObjectIdBounds() {
+        ObjectId min = new ObjectId(new Date(1_000_000L), 7, (short) 1, 1);
+        ObjectId max = new ObjectId(new Date(5_000_000L), 7, (short) 1, 1);
+
+        List<Object> bounds = IdRangePartitioner.getBounds(min, max, 4);
+
+        assertEquals(Arrays.asList(2_000, 3_000, 4_000),
+                bounds.stream().map(bound -> ((ObjectId) bound).getTimestamp()).collect(Collectors.toList()));
+        assertTrue(min.compareTo((ObjectId) bounds.get(0)) < 0);
+        assertEquals(Collections.emptyList(), IdRangePartitioner.getBounds(min, min, 4));
+    }
+
+    @Test
+    public void testIntegralBounds() {
+        assertEquals(Arrays.asList(25L, 50L, 75L), IdRangePartitioner.getBounds(0, 100L, 4));
+        assertEquals(Collections.singletonList(1L), IdRangePartitioner.getBounds(0, 2, 4));// Duplicate bounds are dropped
+        assertEquals(Arrays.asList(-50L, 0L, 50L), IdRangePartitioner.getBounds(-100L, 100, 4));
+    }
+
+    @Test
+    public void testDoubleBounds() {
+        assertEquals(Arrays.asList(0.25, 0.5, 0.75), IdRangePartitioner.getBounds(0.0, 1, 4));
+        assertEquals(Collections.emptyList(), IdRangePartitioner.getBounds(1.5, 1.5, 4));
+    }
+
+    @Test
+    public void testSingleRangeFallback() {
+        Document single = new Document();
+        assertEquals(Collections.singletonList(single), IdRangePartitioner.split(collection(new ObjectId(), 5L), 4, 0));
+        assertEquals(Collections.singletonList(single), IdRangePartitioner.split(collection("a", "z"), 4, 0));
+        assertEquals(Collections.emptyList(), IdRangePartitioner.getBounds(null, null, 4));// An empty collection
+        assertEquals(Collections.emptyList(), IdRangePartitioner.getBounds(new Date(0), new Date(), 4));
+    }
+
+    @Test
+    public void testOpenEndedRanges() {
+        List<Bson> ranges = IdRangePartitioner.split(collection(0L, 100L), 4, 0);
+
+        assertEquals(4, ranges.size());
+        assertEquals(BsonDocument.parse("{_id: {$lt: {$numberLong: '25'}}}"), render(ranges.get(0)));
+        assertEquals(BsonDocument.parse("{_id: {$gte: {$numberLong: '75'}}}"), render(ranges.get(3)));
+        for (long id : new long[]{Long.MIN_VALUE, -1, 0, 24, 25, 49, 50, 99, 100, Long.MAX_VALUE}) {
+            long matches = ranges.stream().filter(range -> InMemoryCollection.matches(range, id)).count();
+            assertEquals("Ranges covering " + id, 1, matches);
+        }
+    }
+
+    @Test
+    public void testPartitionedScan() {
+        List<Document> documents = new ArrayList<>();
+        for (long i = 0; i < 1_000; i++) {
+            Document doc = new Document("_id", i).append("k" + (i % 7), i % 3 == 0 ? "x" : 1);
+            if (i == 999) {
+                doc.append("last", list(new Document("a", true)));
+            }
+            documents.add(doc);
+        }
+        MongoCollection<Document> collection = collection(documents.toArray(new Document[0]));
+
+        Document expected = GeneratorTests.generator().forCollection(collection).generateSchema();
+        SchemaStatistics partitioned = GeneratorTests.generator().withPartitions(4).forCollection(collection).generateStatistics();
+
+        assertEquals(expected, partitioned.getSchema());
+        assertEquals(1_000, partitioned.getDocuments());
+        assertEquals(list(new Document("a", "Boolean")), partitioned.getSchema().get("last"));
+    }
+
+    private static BsonDocument render(Bson filter) {
+        return filter.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+    }
+
+    /** An {@link InMemoryCollection} of documents with only an _id. */
+    private static MongoCollection<Document> collection(Object... ids) {
+        return collection(Arrays.stream(ids).map(id -> new Document("_id", id)).toArray(Document[]::new));
+    }
+
+    private static MongoCollection<Document> collection(Document... documents) {
+        return new InMemoryCollection(documents).collection();
+    }
+}
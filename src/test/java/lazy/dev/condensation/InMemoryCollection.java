@@ -0,0 +1,359 @@
+package lazy.dev.condensation;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoNamespace;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+
+/**
+ * An in-process stand-in for a {@link MongoCollection} that serves documents from a {@link SyntheticWorkload}, or a
+ * fixed list of documents. Documents are generated a batch at a time as the cursor reaches them, like the driver
+ * fetches them, so heap use stays at a batch however many documents are served. Each batch can be delayed to simulate
+ * a slow server, and a cursor can be made to fail part way through.
+ *
+ * Supports what the {@link Generator} reads: count, find with limit, batchSize and sort on _id, first, aggregate,
+ * raw BSON through withDocumentClass and read preferences. Filters on _id ($gt, $gte, $lt, $lte or equality, combined
+ * with $and) are applied, other filters and projections are ignored. Aggregations serve every document as the output
+ * of the pipeline, for the rows of a {@link PathTypeAggregation} or the batches of $sample. The options of each find
+ * and the read preference of each read are recorded for the tests to check.
+ */
+public class InMemoryCollection {
+
+    private static final String ID = "_id";
+
+    private final MongoNamespace namespace;
+    private final LongFunction<Document> documentAt;
+    private final long documents;
+    private int batchSize = 1_000;
+    private long batchDelayNanos;
+    private long failAt = -1;
+    private RuntimeException failure;
+    private final AtomicLong batches = new AtomicLong();
+    private final List<Map<String,Object>> finds = Collections.synchronizedList(new ArrayList<>());
+    private final List<ReadPreference> reads = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param workload - the workload generating the documents.
+     * @param documents - the number of documents in the collection.
+     */
+    public InMemoryCollection(SyntheticWorkload workload, long documents){
+        this.namespace=new MongoNamespace("synthetic","workload");
+        this.documentAt=workload::document;
+        this.documents=documents;
+    }
+
+    /**
+     * @param documents - the documents in the collection, served in this order unless sorted on _id.
+     */
+    public InMemoryCollection(Document... documents){
+        List<Document> list = Arrays.asList(documents);
+        this.namespace=new MongoNamespace("test","test");
+        this.documentAt=index -> list.get((int) index);
+        this.documents=documents.length;
+    }
+
+    public InMemoryCollection withBatchSize(int batchSize){
+        this.batchSize=batchSize;
+        return this;
+    }
+
+    public InMemoryCollection withBatchDelay(long delay, TimeUnit unit){
+        this.batchDelayNanos=unit.toNanos(delay);
+        return this;
+    }
+
+    /**
+     * Make every cursor fail once it reaches a document, like a connection lost part way through a scan.
+     * @param position - the position of the document in the cursor.
+     * @param failure - thrown by the cursor.
+     */
+    public InMemoryCollection withFailure(long position, RuntimeException failure){
+        this.failAt=position;
+        this.failure=failure;
+        return this;
+    }
+
+    /**
+     * @return the number of batches fetched by every cursor so far.
+     */
+    public long getBatches(){
+        return batches.get();
+    }
+
+    /**
+     * @return the options of every find so far, in order, by the name of the method that set them with its argument.
+     * The filter of the find itself is under "filter".
+     */
+    public List<Map<String,Object>> getFinds(){
+        return finds;
+    }
+
+    /**
+     * @return the read preference of every count, find and aggregate so far, in order.
+     */
+    public List<ReadPreference> getReads(){
+        return reads;
+    }
+
+    /**
+     * @return the collection, serving decoded documents.
+     */
+    public MongoCollection<Document> collection(){
+        return this.collection(document -> document,null);
+    }
+
+    /**
+     * A database of in-memory collections, viewed with a read preference by withReadPreference like a real database.
+     * @param collections - the collections by name.
+     * @return the database.
+     */
+    public static MongoDatabase database(Map<String,InMemoryCollection> collections){
+        return database(collections,null);
+    }
+
+    private static MongoDatabase database(Map<String,InMemoryCollection> collections, ReadPreference readPreference){
+        return GeneratorTests.stub(MongoDatabase.class, (method, args) -> {
+            switch(method.getName()){
+                case "getName": return "test";
+                case "listCollectionNames": return GeneratorTests.stub(MongoIterable.class, (m, a) ->
+                        m.getName().equals("iterator")? GeneratorTests.cursor(collections.keySet().iterator()) : null);
+                case "getCollection": return collections.get(args[0]).collection(document -> document,readPreference);
+                case "withReadPreference": return database(collections,(ReadPreference) args[0]);
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Check a document's _id against the _id clauses of a filter, other clauses are ignored.
+     * Numbers are compared by value and ObjectIds by their order, values of different types never match a range.
+     * @param filter - the filter.
+     * @param id - the _id of the document.
+     * @return true if the _id matches.
+     */
+    static boolean matches(Bson filter, Object id){
+        return matches(render(filter),toBson(id));
+    }
+
+    private <T> MongoCollection<T> collection(Function<Document,T> decode, ReadPreference readPreference){
+        return GeneratorTests.stub(MongoCollection.class, (method, args) -> {
+            switch(method.getName()){
+                case "getNamespace": return namespace;
+                case "count":
+                    reads.add(readPreference);
+                    return documents;
+                case "find":
+                    reads.add(readPreference);
+                    return this.findIterable(decode,args==null? null : (Bson) args[0]);
+                case "aggregate":
+                    reads.add(readPreference);
+                    return this.aggregateIterable(decode);
+                case "withDocumentClass":
+                    if(args[0]==RawBsonDocument.class){
+                        DocumentCodec codec = new DocumentCodec();
+                        return this.collection(document -> new RawBsonDocument(document,codec),readPreference);
+                    }
+                    return null;
+                case "withReadPreference": return this.collection(decode,(ReadPreference) args[0]);
+                case "getReadPreference": return readPreference==null? ReadPreference.primary() : readPreference;
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private <T> FindIterable<T> findIterable(Function<Document,T> decode, Bson filter){
+        Map<String,Object> options = new LinkedHashMap<>();
+        if(filter!=null){
+            options.put("filter",filter);
+        }
+        finds.add(options);
+        return GeneratorTests.stub(FindIterable.class, (method, args) -> {
+            switch(method.getName()){
+                case "iterator": return this.cursor(this.select(options),decode,this.getBatchSize(options));
+                case "first":
+                    long[] selected = this.select(options);
+                    return selected.length>0? decode.apply(documentAt.apply(selected[0])) : null;
+                default:
+                    options.put(method.getName(),args==null? null : args[0]);
+                    return null;
+            }
+        });
+    }
+
+    private <T> AggregateIterable<T> aggregateIterable(Function<Document,T> decode){
+        long[] all = this.select(Collections.emptyMap());
+        return GeneratorTests.stub(AggregateIterable.class, (method, args) ->
+                method.getName().equals("iterator")? this.cursor(all,decode,batchSize) : null);
+    }
+
+    private int getBatchSize(Map<String,Object> options){
+        Integer size = (Integer) options.get("batchSize");
+        return size==null || size==0? batchSize : size;
+    }
+
+    /**
+     * The positions of the documents a find serves, in order: those matching the filter, sorted on _id if a sort is
+     * set, up to the limit.
+     */
+    private long[] select(Map<String,Object> options){
+        Integer limit = (Integer) options.get("limit");
+        long max = limit==null || limit==0? documents : Math.min(documents,limit);
+        Bson filter = (Bson) options.get("filter");
+        Bson sort = (Bson) options.get("sort");
+        if(filter==null && sort==null){
+            long[] all = new long[(int) max];
+            for(int i=0; i<max; i++){
+                all[i] = i;
+            }
+            return all;
+        }
+
+        BsonDocument rendered = filter==null? new BsonDocument() : render(filter);
+        List<Long> selected = new ArrayList<>();
+        List<BsonValue> ids = new ArrayList<>();
+        for(long i=0; i<documents; i++){
+            BsonValue id = toBson(documentAt.apply(i).get(ID));
+            if(matches(rendered,id)){
+                selected.add(i);
+                ids.add(id);
+            }
+        }
+        if(sort!=null){
+            int direction = render(sort).getNumber(ID).intValue();
+            Map<Long,BsonValue> idOf = new LinkedHashMap<>();
+            for(int i=0; i<selected.size(); i++){
+                idOf.put(selected.get(i),ids.get(i));
+            }
+            selected.sort((a, b) -> direction*compare(idOf.get(a),idOf.get(b)));
+        }
+        return selected.stream().limit(max).mapToLong(Long::longValue).toArray();
+    }
+
+    private static BsonDocument render(Bson bson){
+        return bson.toBsonDocument(BsonDocument.class,MongoClient.getDefaultCodecRegistry());
+    }
+
+    private static BsonValue toBson(Object value){
+        return value==null? null : render(new Document(ID,value)).get(ID);
+    }
+
+    private static boolean matches(BsonDocument filter, BsonValue id){
+        for(Map.Entry<String,BsonValue> clause : filter.entrySet()){
+            if(clause.getKey().equals("$and")){
+                for(BsonValue part : clause.getValue().asArray()){
+                    if(!matches(part.asDocument(),id)){
+                        return false;
+                    }
+                }
+            } else if(clause.getKey().equals(ID)){
+                if(id==null){
+                    return false;
+                }
+                BsonValue condition = clause.getValue();
+                if(!condition.isDocument() || !condition.asDocument().getFirstKey().startsWith("$")){
+                    if(!condition.equals(id)){
+                        return false;
+                    }
+                    continue;
+                }
+                for(Map.Entry<String,BsonValue> operator : condition.asDocument().entrySet()){
+                    if(operator.getValue().getBsonType()!=id.getBsonType() && !(operator.getValue().isNumber() && id.isNumber())){
+                        return false;// Ranges only match values of the same type
+                    }
+                    int order = compare(id,operator.getValue());
+                    boolean matched;
+                    switch(operator.getKey()){
+                        case "$gt": matched = order>0; break;
+                        case "$gte": matched = order>=0; break;
+                        case "$lt": matched = order<0; break;
+                        case "$lte": matched = order<=0; break;
+                        default: throw new UnsupportedOperationException(operator.getKey());
+                    }
+                    if(!matched){
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Order _ids: numbers by value, ObjectIds by their order and anything else by type. */
+    private static int compare(BsonValue a, BsonValue b){
+        if(a==null || b==null){
+            return a==b? 0 : a==null? -1 : 1;// Documents without an _id first
+        } else if(a.isNumber() && b.isNumber()){
+            return Double.compare(a.asNumber().doubleValue(),b.asNumber().doubleValue());
+        } else if(a.isObjectId() && b.isObjectId()){
+            return a.asObjectId().getValue().compareTo(b.asObjectId().getValue());
+        }
+        return Integer.compare(a.getBsonType().getValue(),b.getBsonType().getValue());
+    }
+
+    private <T> MongoCursor<T> cursor(long[] positions, Function<Document,T> decode, int batchSize){
+        return new MongoCursor<T>() {
+            private final List<T> buffer = new ArrayList<>();
+            private int position;
+            private int next;
+
+            @Override public void close() { next = positions.length; buffer.clear(); }
+            @Override public boolean hasNext() { return position<buffer.size() || next<positions.length; }
+            @Override public T next() {
+                if(!this.hasNext()){
+                    throw new NoSuchElementException();
+                }
+                if(position==buffer.size()){
+                    this.fetch();
+                }
+                return buffer.get(position++);
+            }
+            @Override public T tryNext() { return this.hasNext()? this.next() : null; }
+            @Override public ServerCursor getServerCursor() { return null; }
+            @Override public ServerAddress getServerAddress() { return null; }
+
+            private void fetch(){
+                if(batchDelayNanos>0){
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(batchDelayNanos);
+                    } catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                buffer.clear();
+                position = 0;
+                for(int i=0; i<batchSize && next<positions.length; i++){
+                    if(next==failAt){
+                        throw failure;
+                    }
+                    buffer.add(decode.apply(documentAt.apply(positions[next++])));
+                }
+                batches.incrementAndGet();
+            }
+        };
+    }
+}
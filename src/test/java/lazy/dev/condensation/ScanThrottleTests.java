@@ -0,0 +1,65 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScanThrottleTests {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void testRates() {
+        ScanThrottle documents = new ScanThrottle(1_000, 0, false, clock::get, clock::addAndGet);
+        for (int i = 0; i < 5_000; i++) {
+            documents.acquire(new Document());
+        }
+        assertEquals(TimeUnit.SECONDS.toNanos(5), clock.get());
+
+        clock.set(0);
+        RawBsonDocument doc = new RawBsonDocument(new Document("a", "x"), new DocumentCodec());
+        long size = doc.getByteBuffer().remaining();
+        ScanThrottle bytes = new ScanThrottle(1_000_000, size * 100, false, clock::get, clock::addAndGet);
+        for (int i = 0; i < 1_000; i++) {
+            bytes.acquire(doc);
+        }
+        assertEquals(TimeUnit.SECONDS.toNanos(10), clock.get(), TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(clock.get(), bytes.getThrottledNanos(), TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testAdaptiveBackoff() {
+        ScanThrottle throttle = new ScanThrottle(0, 0, true, clock::get, clock::addAndGet);
+        long batch = TimeUnit.MILLISECONDS.toNanos(10);
+        for (int i = 0; i < 10; i++) {
+            throttle.cursorWait(batch);
+        }
+        assertEquals(0, clock.get());
+
+        throttle.cursorWait(batch * 5);// The server got busy
+        assertEquals(batch * 5, clock.get());
+        throttle.cursorWait(batch * 5);
+        assertEquals(batch * 15, clock.get());
+        for (int i = 0; i < 10; i++) {
+            throttle.cursorWait(batch * 1_000);
+        }
+        long paused = clock.get();
+        assertTrue(paused <= batch * 15 + 10 * ScanThrottle.MAX_PAUSE_NANOS);
+
+        clock.set(0);
+        for (int i = 0; i < 20; i++) {
+            throttle.cursorWait(batch);// Back to normal, the pause halves away
+        }
+        assertTrue(clock.get() < 2 * ScanThrottle.MAX_PAUSE_NANOS);
+        clock.set(0);
+        throttle.cursorWait(batch);
+        assertEquals(0, clock.get());
+    }
+}
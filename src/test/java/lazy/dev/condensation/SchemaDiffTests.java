@@ -0,0 +1,133 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static lazy.dev.condensation.GeneratorTests.collection;
+import static lazy.dev.condensation.GeneratorTests.generator;
+import static lazy.dev.condensation.GeneratorTests.list;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SchemaDiffTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testDifferences() {
+        Document before = new Document("a", "String")
+                .append("b", new Document("c", "Integer").append("d", "Date"))
+                .append("items", list(new Document("name", "String").append("price", "Double")))
+                .append("tags", list())
+                .append("gone", new Document("x", "String"));
+        Document after = new Document("items", list(new Document("price", "Decimal128").append("name", "String").append("sku", "String")))
+                .append("b", new Document("d", "Date").append("c", "MERGE_CONFLICT"))
+                .append("a", "Long")
+                .append("tags", list("String"))
+                .append("n", null);
+
+        SchemaDiff diff = SchemaDiff.between(before, after);
+
+        assertEquals(Arrays.asList(
+                "TYPE_CHANGED a: String -> Long",
+                "NEW_CONFLICT b.c: Integer -> MERGE_CONFLICT",
+                "REMOVED gone: Document -> null",
+                "TYPE_CHANGED items[].price: Double -> Decimal128",
+                "ADDED items[].sku: null -> String",
+                "ADDED n: null -> null",
+                "ADDED tags[]: null -> String"
+        ), Arrays.asList(diff.toString().split("\n")));
+        assertEquals(1, diff.getDifferences(SchemaDiff.Change.NEW_CONFLICT).size());
+        assertEquals("String", SchemaIndex.of(before).getType("gone.x"));
+        assertEquals("Decimal128", SchemaIndex.of(after).getType("items[].price"));
+        assertNull(SchemaIndex.of(after).getType("gone"));
+    }
+
+    @Test
+    public void testKeyOrderAndEmptySchemas() {
+        Document before = new Document("a", "String").append("b", new Document("c", "Integer").append("d", list("Date")));
+        Document after = new Document("b", new Document("d", list("Date")).append("c", "Integer")).append("a", "String");
+        assertTrue(SchemaDiff.between(before, after).isEmpty());
+
+        // "Aa" and "BB" share a String#hashCode, the renames must still be found
+        assertEquals(Arrays.asList("REMOVED Aa: String -> null", "ADDED BB: null -> String"),
+                Arrays.asList(SchemaDiff.between(new Document("Aa", "String"), new Document("BB", "String")).toString().split("\n")));
+        assertEquals(1, SchemaDiff.between(new Document("x", new Document("Aa", "FB")), new Document("x", new Document("BB", "Ea")))
+                .getDifferences(SchemaDiff.Change.ADDED).size());
+        assertEquals(1, SchemaDiff.between(new Document("a", "FB"), new Document("a", "Ea"))
+                .getDifferences(SchemaDiff.Change.TYPE_CHANGED).size());
+
+        assertEquals(2, SchemaDiff.between(null, before).getDifferences(SchemaDiff.Change.ADDED).size());
+        assertEquals(2, SchemaDiff.between(before, null).getDifferences(SchemaDiff.Change.REMOVED).size());
+    }
+
+    @Test
+    public void testLargeSchemas() {
+        Document before = new Document();
+        Document after = new Document();
+        for (int i = 0; i < 500; i++) {
+            Document group = new Document();
+            Document changed = new Document();
+            for (int j = 0; j < 500; j++) {
+                group.append("f" + j, "String");
+                changed.append("f" + j, i == 123 && j == 456 ? "Integer" : "String");
+            }
+            before.append("g" + i, group);
+            after.append("g" + i, changed);
+        }
+        SchemaIndex beforeIndex = SchemaIndex.of(before);
+        SchemaIndex afterIndex = SchemaIndex.of(after);
+        assertEquals(250_501, afterIndex.size());
+
+        SchemaDiff diff = SchemaDiff.between(beforeIndex, afterIndex);
+        assertEquals("TYPE_CHANGED g123.f456: String -> Integer", diff.toString());
+        assertTrue(SchemaDiff.between(beforeIndex, SchemaIndex.of(before)).isEmpty());
+    }
+
+    @Test
+    public void testWideDocuments() {
+        Document before = new Document();
+        Document after = new Document();
+        for (int i = 0; i < 2_000; i++) {
+            if (i % 500 != 7) {
+                before.append("f" + i, "String");
+            }
+            if (i % 700 != 3) {
+                after.append("f" + i, i == 1_234 ? "Long" : "String");
+            }
+        }
+        SchemaDiff diff = SchemaDiff.between(before, after);
+        assertEquals(Arrays.asList(
+                "ADDED f1007: null -> String",
+                "TYPE_CHANGED f1234: String -> Long",
+                "REMOVED f1403: String -> null",
+                "ADDED f1507: null -> String",
+                "REMOVED f3: String -> null",
+                "ADDED f507: null -> String",
+                "ADDED f7: null -> String",
+                "REMOVED f703: String -> null"
+        ), Arrays.asList(diff.toString().split("\n")));
+    }
+
+    @Test
+    public void testCheckpointBaseline() throws Exception {
+        SchemaNode schema = generator().forCollection(collection(
+                new Document("$ref", "users").append("$id", 1).append("at", new Document("$date", "today")))).generateSchemaNode();
+        SchemaCheckpoint checkpoint = new SchemaCheckpoint();
+        checkpoint.setSchemaNode(schema);
+        Path path = temporaryFolder.newFile().toPath();
+        checkpoint.save(path);
+
+        Document baseline = SchemaCheckpoint.load(path).getSchema();
+        assertEquals("String", SchemaIndex.of(baseline).getType("at.$date"));
+        assertEquals("String", SchemaIndex.of(baseline).getType("$ref"));
+        assertTrue(SchemaDiff.between(SchemaIndex.of(baseline), SchemaIndex.of(schema.toDocument())).isEmpty());
+    }
+}
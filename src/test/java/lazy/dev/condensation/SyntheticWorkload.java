@@ -0,0 +1,119 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates seeded synthetic documents, the same index always gives the same document.
+ *   width       - the number of fields at each level.
+ *   depth       - the number of levels of nested documents.
+ *   arrayLength - the number of elements in each list.
+ *   shapes      - the number of distinct shapes, each shape drops one field and adds one of its own at every level.
+ *   conflicts   - the fraction of documents whose Integer fields hold a String instead, which the schema marks as a conflict.
+ * Fields cycle through a String, an Integer, a nested Document (a Long at the last level), a list of Integers and a
+ * list of small Documents. Lists are ArrayLists like the driver decodes them. The _id is the document's index.
+ */
+public class SyntheticWorkload {
+
+    private long seed = 42;
+    private int width = 8;
+    private int depth = 2;
+    private int arrayLength = 10;
+    private int shapes = 1;
+    private double conflicts = 0;
+
+    public SyntheticWorkload withSeed(long seed){
+        this.seed=seed;
+        return this;
+    }
+
+    public SyntheticWorkload withWidth(int width){
+        this.width=width;
+        return this;
+    }
+
+    public SyntheticWorkload withDepth(int depth){
+        this.depth=depth;
+        return this;
+    }
+
+    public SyntheticWorkload withArrayLength(int arrayLength){
+        this.arrayLength=arrayLength;
+        return this;
+    }
+
+    public SyntheticWorkload withShapes(int shapes){
+        this.shapes=shapes;
+        return this;
+    }
+
+    public SyntheticWorkload withConflicts(double conflicts){
+        this.conflicts=conflicts;
+        return this;
+    }
+
+    /**
+     * Build the document at an index.
+     * @param index - the index of the document, also its _id.
+     * @return the document.
+     */
+    public Document document(long index){
+        Random random = new Random(seed*31+index);
+        boolean conflict = conflicts>0 && random.nextDouble()<conflicts;
+        Document document = new Document("_id",index);
+        this.fill(document,(int) (index%shapes),conflict,1);
+        return document;
+    }
+
+    /**
+     * Build one document of each shape, without conflicts.
+     * @return the documents, indexed by shape.
+     */
+    public Document[] shapes(){
+        Document[] documents = new Document[shapes];
+        for(int shape=0; shape<shapes; shape++){
+            documents[shape] = this.fill(new Document(),shape,false,1);
+        }
+        return documents;
+    }
+
+    private Document fill(Document document, int shape, boolean conflict, int level){
+        for(int i=0; i<width; i++){
+            if(shapes>1 && i==shape%width){
+                continue;// Each shape drops a different field
+            }
+            String key = "f"+i;
+            switch(i%5){
+                case 0:
+                    document.put(key,"value"+i);
+                    break;
+                case 1:
+                    document.put(key,conflict? (Object) ("value"+i) : (Object) i);
+                    break;
+                case 2:
+                    document.put(key,level<depth? this.fill(new Document(),shape,conflict,level+1) : (long) i);
+                    break;
+                case 3:
+                    List<Object> numbers = new ArrayList<>(arrayLength);
+                    for(int j=0; j<arrayLength; j++){
+                        numbers.add(j);
+                    }
+                    document.put(key,numbers);
+                    break;
+                default:
+                    List<Object> documents = new ArrayList<>(arrayLength);
+                    for(int j=0; j<arrayLength; j++){
+                        documents.add(new Document("id",j).append("name","name"+j));
+                    }
+                    document.put(key,documents);
+            }
+        }
+        if(shapes>1){
+            document.put("shape"+shape,shape);
+        }
+        return document;
+    }
+}
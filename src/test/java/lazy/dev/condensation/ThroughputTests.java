@@ -0,0 +1,116 @@
+package lazy.dev.condensation;
+
+import org.bson.Document;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End to end runs of the {@link Generator} against an {@link InMemoryCollection}, logging documents per second and heap use.
+ */
+public class ThroughputTests {
+
+    private static Logger logger = LoggerFactory.getLogger(ThroughputTests.class);
+
+    private static final int DOCUMENTS = 50_000;
+
+    @Test
+    public void testDecodedThroughput() {
+        this.assertSchema(this.run(new HashMap<>()));
+    }
+
+    @Test
+    public void testRawBsonThroughput() {
+        Map<Generator.Setting, Boolean> settings = new HashMap<>();
+        settings.put(Generator.Setting.RAW_BSON, true);
+        this.assertSchema(this.run(settings));
+    }
+
+    @Test
+    public void testSlowBatches() {
+        InMemoryCollection collection = new InMemoryCollection(new SyntheticWorkload(), 1_000)
+                .withBatchSize(100)
+                .withBatchDelay(5, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        Document schema = GeneratorTests.generator().forCollection(collection.collection()).generateSchema();
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(10, collection.getBatches());
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals("Long", schema.get("_id"));
+    }
+
+    @Test
+    public void testPipelinedSlowBatches() {
+        InMemoryCollection collection = new InMemoryCollection(new SyntheticWorkload().withShapes(16), 5_000)
+                .withBatchDelay(5, TimeUnit.MILLISECONDS);
+        Document expected = GeneratorTests.generator().forCollection(collection.collection()).generateSchema();
+        long batches = collection.getBatches();
+
+        long start = System.nanoTime();
+        SchemaStatistics statistics = GeneratorTests.generator().withBatchSize(100).withPipelining(4, 2)
+                .forCollection(collection.collection()).generateStatistics();
+        long elapsed = System.nanoTime() - start;
+        logger.info("[5000] documents pipelined in [" + TimeUnit.NANOSECONDS.toMillis(elapsed) + "] ms");
+
+        assertEquals(batches + 50, collection.getBatches());
+        assertEquals(5_000, statistics.getDocuments());
+        assertEquals(expected, statistics.getSchema());
+    }
+
+    @Test
+    public void testThrottledScan() {
+        InMemoryCollection collection = new InMemoryCollection(new SyntheticWorkload(), 2_000);
+        Map<Generator.Setting, Boolean> settings = new HashMap<>();
+        settings.put(Generator.Setting.RAW_BSON, true);
+        settings.put(Generator.Setting.ADAPTIVE_BACKOFF, true);
+
+        long start = System.nanoTime();
+        Document schema = GeneratorTests.generator().withSettings(settings).withThrottle(10_000, 0)
+                .forCollection(collection.collection()).generateSchema();
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(190));
+        assertEquals("Long", schema.get("_id"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testByteThrottleNeedsRawBson() {
+        InMemoryCollection collection = new InMemoryCollection(new SyntheticWorkload(), 10);
+        GeneratorTests.generator().withThrottle(0, 1_000_000).forCollection(collection.collection()).generateSchema();
+    }
+
+    private Document run(Map<Generator.Setting, Boolean> settings) {
+        SyntheticWorkload workload = new SyntheticWorkload().withShapes(16).withConflicts(0.01).withArrayLength(20);
+        InMemoryCollection collection = new InMemoryCollection(workload, DOCUMENTS);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        long start = System.nanoTime();
+        Document schema = GeneratorTests.generator().withSettings(settings).forCollection(collection.collection()).generateSchema();
+        long elapsed = System.nanoTime() - start;
+
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        logger.info("[" + DOCUMENTS + "] documents in [" + TimeUnit.NANOSECONDS.toMillis(elapsed) + "] ms, ["
+                + (DOCUMENTS * TimeUnit.SECONDS.toNanos(1) / elapsed) + "] documents/s, heap grew by ["
+                + (heapAfter - heapBefore) / 1024 + "] KB with settings: " + settings);
+        return schema;
+    }
+
+    private void assertSchema(Document schema) {
+        assertEquals("MERGE_CONFLICT", schema.get("f1"));
+        assertEquals("String", schema.get("f0"));
+        for (int shape = 0; shape < 16; shape++) {
+            assertEquals("Integer", schema.get("shape" + shape));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package lazy.dev.condensation.service;
+
+import lazy.dev.condensation.SchemaNode;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SchemaCacheTests {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger generated = new AtomicInteger();
+    private final Supplier<SchemaNode> generate = () -> {
+        generated.incrementAndGet();
+        return null;
+    };
+
+    @Test
+    public void testExpiryAndInvalidation() {
+        SchemaCache cache = new SchemaCache(2, 10, TimeUnit.SECONDS, clock::get);
+
+        cache.get("a", 1, generate);
+        cache.get("a", 1, generate);
+        assertEquals(1, generated.get());
+
+        cache.get("a", 2, generate);// The collection changed
+        assertEquals(2, generated.get());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(11));
+        cache.get("a", 2, generate);
+        assertEquals(3, generated.get());
+
+        cache.get("b", 1, generate);
+        cache.get("c", 1, generate);
+        assertEquals(2, cache.size());
+        cache.get("a", 2, generate);// Evicted as the least recently used
+        assertEquals(6, generated.get());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        SchemaCache cache = new SchemaCache(10, 10, TimeUnit.MINUTES);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            Future<SchemaNode> first = executor.submit(() -> cache.get("a", 1, () -> {
+                started.countDown();
+                await(release);
+                generated.incrementAndGet();
+                return null;
+            }));
+            started.await();
+            Future<?>[] others = new Future<?>[3];
+            for(int i = 0; i < others.length; i++){
+                others[i] = executor.submit(() -> cache.get("a", 1, generate));
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+            Future<SchemaNode> newer = executor.submit(() -> cache.get("a", 2, generate));
+            assertNull(newer.get(1, TimeUnit.SECONDS));// The collection changed, don't wait on the stale generation
+            assertEquals(1, generated.get());
+            release.countDown();
+
+            assertNull(first.get());
+            for(Future<?> other : others){
+                assertNull(other.get());
+            }
+            assertEquals(2, generated.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch){
+        try {
+            latch.await();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}